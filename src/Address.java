@@ -22,4 +22,27 @@ public class Address {
     public void setOffset(int offset) {
         this.offset = offset;
     }
+
+    /**
+     * Packs a block id and offset into one long, block id in the high 32 bits
+     */
+    public static long pack(int id, int offset) {
+        return ((long) id << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static int idOf(long packedAddress) {
+        return (int) (packedAddress >>> 32);
+    }
+
+    public static int offsetOf(long packedAddress) {
+        return (int) packedAddress;
+    }
+
+    public long pack() {
+        return pack(id, offset);
+    }
+
+    public static Address unpack(long packedAddress) {
+        return new Address(idOf(packedAddress), offsetOf(packedAddress));
+    }
 }
\ No newline at end of file
@@ -1,15 +1,31 @@
 public class App {
 
+    /**
+     * The page size can be overridden with -DpageSize=4096, 8192 or 16384 to compare the experiments across page sizes.
+     * -DcoveringIndex=true keeps averageRating in the index, so experiments 3 and 4 read no data blocks.
+     * -DwalDurability=FSYNC, GROUP_COMMIT or ASYNC sets when logged operations are forced to disk.
+     * -DrecoveryThreads=4 replays the log of a disk that was not closed on 4 threads
+     */
+    private static StorageConfiguration buildConfiguration() {
+        return new StorageConfiguration.Builder()
+            .setPageSize(Integer.getInteger("pageSize", Block.BLOCK_BYTE_SIZE))
+            .setCoveringIndex(Boolean.getBoolean("coveringIndex"))
+            .setWalDurability(WriteAheadLog.DURABILITY.valueOf(System.getProperty("walDurability", WriteAheadLog.DURABILITY.GROUP_COMMIT.name())))
+            .setRecoveryThreads(Integer.getInteger("recoveryThreads", 1))
+            .build();
+    }
+
     public static StorageManager initOrResetDisk() {
+        StorageConfiguration storageConfiguration = buildConfiguration();
+
         // Init disk memory
-        Disk disk = new Disk(Block.BLOCK_BYTE_SIZE);
+        Disk disk = new Disk(storageConfiguration.getPageSize());
 
         // Initialize default B tree using numVotes
-        BPlusTree bPlusTree = new BPlusTree(200);
+        BPlusTree bPlusTree = new BPlusTree(storageConfiguration.getPageSize(), storageConfiguration.isCoveringIndex());
 
         // Init storage related components
-        WriteAheadLog writeAheadLog = new WriteAheadLog(System.getProperty("user.dir") + "/recovery.log");
-        StorageConfiguration storageConfiguration = new StorageConfiguration.Builder().build();
+        WriteAheadLog writeAheadLog = new WriteAheadLog(System.getProperty("user.dir") + "/recovery.log", storageConfiguration);
         StorageManager storageManager = new StorageManager(disk, storageConfiguration, writeAheadLog, bPlusTree);
 
         // Seed data
@@ -18,9 +34,36 @@ public class App {
         return storageManager;
     }
 
+    /**
+     * Open a file-backed disk, only seeding it if the file does not hold any records yet.
+     * The B+ tree is kept in pages of an index file next to it, so a cleanly closed disk is reopened without rebuilding the index,
+     * and the write ahead log in segment files next to it, so a disk that was not closed is recovered
+     */
+    public static StorageManager openDisk(String diskFilePath) {
+        StorageConfiguration storageConfiguration = buildConfiguration();
+        Disk disk = new Disk(storageConfiguration.getPageSize(), diskFilePath);
+        Disk indexDisk = new Disk(storageConfiguration.getPageSize(), diskFilePath + ".idx");
+        DiskBPlusTree bPlusTree = new DiskBPlusTree(indexDisk, storageConfiguration);
+
+        // The log belongs to the disk, its checkpoints record up to which log entry the disk is durable
+        WriteAheadLog writeAheadLog = new WriteAheadLog(diskFilePath + ".wal", storageConfiguration);
+        StorageManager storageManager = new StorageManager(disk, storageConfiguration, writeAheadLog, bPlusTree);
+
+        if (storageManager.isEmpty()) {
+            DataSeeder.seed(System.getProperty("user.dir") + "/data.tsv", storageManager);
+            storageManager.checkpoint();
+        } else {
+            // Redo whatever was logged after the last checkpoint, in case the last run did not close the disk
+            storageManager.recover();
+        }
+
+        return storageManager;
+    }
+
     public static void main(String[] args) throws Exception {
 
-        StorageManager storageManager = initOrResetDisk();
+        // Pass a disk file path to keep the disk across runs instead of reseeding every time
+        StorageManager storageManager = args.length > 0 ? openDisk(args[0]) : initOrResetDisk();
 
         // Experiment 1
         storageManager.printState(false);
@@ -29,12 +72,15 @@ public class App {
         System.out.println("Experiment 3: Retrieving records by number of votes");
         storageManager.retrieveRecordsByNumVotes(500); // B+ tree method
         storageManager.linearScanByNumVotes(500); // Linear scan method
+        storageManager.queryRecordsByNumVotesRange(500, 500); // Method chosen by the planner
         System.out.println();
         
         // Experiment 4
         System.out.println("Experiment 4: Retrieving records by number of votes range");
         storageManager.retrieveRecordsByNumVotesRange(30000, 40000); // B+ tree method
+        storageManager.retrieveRecordsByNumVotesRangeSorted(30000, 40000); // B+ tree method, reading each block once in block order
         storageManager.linearScanByNumVotesRange(30000, 40000); // Linear scan method
+        storageManager.queryRecordsByNumVotesRange(30000, 40000); // Method chosen by the planner
         System.out.println();
 
         // Experiment 5
@@ -46,5 +92,9 @@ public class App {
         storageManager2.printState(false);
         storageManager2.linearScanDeleteByNumVotes(1000); // Linear scan method
         System.out.println();
+        storageManager2.close();
+
+        // A file-backed disk and its index are only reopened without a rebuild if they were closed cleanly
+        storageManager.close();
     }
 }
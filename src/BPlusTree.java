@@ -1,21 +1,54 @@
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class BPlusTree {
+/**
+ * B+ tree on numVotes whose nodes are heap objects. It is sized as if every node were a block, but is rebuilt on every start.
+ *
+ * insert, delete, deleteKey and the lookups can be called from several threads at once.
+ * Lookups take no locks at all: they descend optimistically and validate the version of the leaf they read,
+ * and the structure version of the tree, retrying if a writer got in the way.
+ * A writer that only changes one leaf holds the structure lock shared and the leaf's version lock,
+ * so writers on different leaves run in parallel. Splits and rebalancing hold the structure lock exclusively
+ * and bump the structure version, which makes lookups running at the same time start over.
+ */
+public class BPlusTree implements Index {
     private static final int POINTER_SIZE = 8;
     private static final int KEY_SIZE = 4;
+    private static final int RATING_SIZE = 4;
 
     int maxKeys;
+    int overflowPageCapacity;
     int minKeysParentNode;
     int minKeysLeafNode;
     int height;
     int nodeCount;
     int deletedCount;
     int recordCount;
-    Node root;
+    // Whether the leaves keep the averageRating of every record next to its address
+    final boolean covering;
+    final LongAdder nodeAccessCount = new LongAdder();
+    volatile Node root;
+
+    // Held shared by writers that change a single leaf in place, exclusively by splits and rebalancing
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    // Odd while the structure of the tree is being changed. Lookups retry if it moved while they ran
+    private volatile long structureVersion;
 
     public BPlusTree(int blockSize) {
+        this(blockSize, false);
+    }
+
+    /**
+     * @param covering Whether the leaves also keep the averageRating of every record, for index-only rating aggregates
+     */
+    public BPlusTree(int blockSize, boolean covering) {
+        this.covering = covering;
         // Calculate the maximum number of keys that can fit in a block
         maxKeys = (blockSize - POINTER_SIZE) / (KEY_SIZE + POINTER_SIZE);
+        // Overflow pages of a posting list hold addresses, their ratings if covering, and a pointer to the next page
+        overflowPageCapacity = (blockSize - POINTER_SIZE) / (covering ? POINTER_SIZE + RATING_SIZE : POINTER_SIZE);
         
         // Calculate the minimum number of keys for parent and leaf nodes
         minKeysParentNode = (int) Math.floor(maxKeys / 2);
@@ -36,7 +69,7 @@ public class BPlusTree {
      */
     public Node createTree() {
         // Create a new root node, set it as leaf, and mark it as the root of the tree
-        LeafNode root = new LeafNode();
+        LeafNode root = new LeafNode(maxKeys + 1, covering);
         root.setRoot(true);
 
         // Set the tree height to 1 and initialize the node count
@@ -47,6 +80,119 @@ public class BPlusTree {
         return root;
     }
 
+    /**
+     * Removes every key from the B+ tree, leaving a single empty leaf as the root.
+     */
+    public void clear() {
+        beginStructureChange();
+        try {
+            root = createTree();
+            deletedCount = 0;
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    public boolean isCovering() {
+        return covering;
+    }
+
+    /**
+     * Whether the B+ tree holds no keys at all.
+     */
+    public boolean isEmpty() {
+        return root.returnLeaf() && root.returnKeyCount() == 0;
+    }
+
+    /**
+     * Builds the B+ tree bottom-up from key-address pairs sorted by key, instead of inserting them one at a time.
+     * Pairs sharing a key become one leaf entry. Leaves are filled to fillFactor of maxKeys distinct keys,
+     * then each level of parent nodes is built over the level below.
+     *
+     * @param keys       Keys in ascending order.
+     * @param addresses  The address associated with each key, packed with Address.pack.
+     * @param averageRatings The averageRating of the record at each address, only kept if the tree is covering.
+     * @param fillFactor Fraction of maxKeys to fill each leaf with.
+     */
+    public void bulkLoad(int[] keys, long[] addresses, float[] averageRatings, float fillFactor) {
+        beginStructureChange();
+        try {
+            buildFrom(keys, addresses, averageRatings, fillFactor);
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    private void buildFrom(int[] keys, long[] addresses, float[] averageRatings, float fillFactor) {
+        if (!isEmpty()) {
+            throw new IllegalArgumentException("Bulk load requires an empty B+ tree");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+
+        int distinctKeyCount = 1;
+        for (int i = 1; i < keys.length; i++)
+            if (keys[i] != keys[i - 1])
+                distinctKeyCount++;
+
+        // Build the leaf level
+        int keysPerLeaf = Math.max(minKeysLeafNode, Math.min(maxKeys, Math.round(maxKeys * fillFactor)));
+        int[] leafSizes = distribute(distinctKeyCount, keysPerLeaf, minKeysLeafNode);
+        ArrayList<Node> level = new ArrayList<>();
+        LeafNode previousLeaf = null;
+        int keyIndex = 0;
+        for (int leafSize : leafSizes) {
+            LeafNode leaf = new LeafNode(maxKeys + 1, covering);
+            for (int i = 0; i < leafSize; i++) {
+                int runEnd = keyIndex + 1;
+                while (runEnd < keys.length && keys[runEnd] == keys[keyIndex])
+                    runEnd++;
+                leaf.appendEntry(keys[keyIndex], addresses, averageRatings, keyIndex, runEnd - keyIndex, overflowPageCapacity);
+                keyIndex = runEnd;
+            }
+            if (previousLeaf != null)
+                previousLeaf.setNext(leaf);
+            previousLeaf = leaf;
+            level.add(leaf);
+        }
+        nodeCount = level.size();
+        height = 1;
+
+        // Build parent levels until a single root is left
+        while (level.size() > 1) {
+            int[] parentSizes = distribute(level.size(), maxKeys + 1, minKeysParentNode + 1);
+            ArrayList<Node> parentLevel = new ArrayList<>();
+            int childIndex = 0;
+            for (int parentSize : parentSizes) {
+                ParentNode parent = new ParentNode(maxKeys + 1);
+                for (int i = 0; i < parentSize; i++, childIndex++)
+                    parent.appendChild(level.get(childIndex));
+                parentLevel.add(parent);
+            }
+            nodeCount += parentLevel.size();
+            height++;
+            level = parentLevel;
+        }
+
+        root = level.get(0);
+        root.setRoot(true);
+    }
+
+    /**
+     * Splits count entries into as few nodes of at most perNode entries as possible, as evenly as possible.
+     * Each node gets at least minPerNode entries unless there is only one node.
+     */
+    static int[] distribute(int count, int perNode, int minPerNode) {
+        int nodes = (count + perNode - 1) / perNode;
+        while (nodes > 1 && count / nodes < minPerNode)
+            nodes--;
+        int[] sizes = new int[nodes];
+        for (int i = 0; i < nodes; i++)
+            sizes[i] = count / nodes + (i < count % nodes ? 1 : 0);
+        return sizes;
+    }
+
     /**
     * Inserts a key-value pair into the B+ tree.
     * If the leaf node is full, it splits the leaf node and redistributes the keys.
@@ -54,94 +200,137 @@ public class BPlusTree {
     * @param address The address associated with the key.
     */
     public void insert(int key, Address address) {
-        // Find the leaf node where the key should be inserted
-        LeafNode leafNode = new LeafNode();
-        leafNode = this.searchLeaf(key);
+        insert(key, address.pack(), Float.NaN);
+    }
+
+    /**
+    * Inserts a key and an address packed with Address.pack into the B+ tree.
+    * A key that is already in the tree only gains another address in its posting list.
+    * @param key The key to insert.
+    * @param address The packed address associated with the key.
+    * @param averageRating The averageRating of the record at address, only kept if the tree is covering.
+    */
+    public void insert(int key, long address, float averageRating) {
+        structureLock.readLock().lock();
+        try {
+            // Find the leaf node where the key should be inserted
+            int[] path = new int[height];
+            LeafNode leafNode = this.searchLeaf(key, path);
+            boolean isInserted;
+            leafNode.writeLock();
+            try {
+                isInserted = insertInPlace(leafNode, key, address, averageRating);
+            } finally {
+                leafNode.writeUnlock();
+            }
+            if (isInserted) {
+                addToCounts(path, 1);
+                return;
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+
+        // The leaf node is full, so it has to be split. Another writer may have split it in the meantime
+        beginStructureChange();
+        try {
+            LeafNode leafNode = this.searchLeaf(key);
+            if (!insertInPlace(leafNode, key, address, averageRating))
+                splitLeaf(leafNode, key, address, averageRating);
+            refreshCounts(key);
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    /**
+     * Adds the address to the leaf node if that does not take a split
+     * Returns whether it was added
+     */
+    private boolean insertInPlace(LeafNode leafNode, int key, long address, float averageRating) {
+        int index = leafNode.indexOf(key);
+        if (index >= 0) {
+            leafNode.addToPosting(index, address, averageRating, overflowPageCapacity);
+            return true;
+        }
 
         // If the leaf node is not full, add the record directly
-        if (leafNode.returnKeys().size() < maxKeys){
-            leafNode.addRecord(key, address);
-        } else {
-            // If the leaf node is full, split it
-            splitLeaf(leafNode, key, address);
+        if (leafNode.returnKeyCount() < maxKeys) {
+            leafNode.addRecord(key, address, averageRating);
+            return true;
         }
+        return false;
     }
 
     /**
-    * Searches for the leaf node where the key should be inserted.
+    * Searches for the leaf node that holds the key, or where the key should be inserted.
+    * Walks from the root down, binary searching each parent node for the child after the last key less than or equal to key.
     * @param key The key to search for.
-    * @return The leaf node where the key should be inserted.
+    * @return The leaf node where the key is or should be inserted.
     */
     public LeafNode searchLeaf(int key) {
-        // If the root node is a leaf, return it directly
-        if (this.root.returnLeaf())
-            return (LeafNode) root;
-
-        ParentNode parentNode = (ParentNode) root;
-        ArrayList<Integer> keys;
-
-        // Traverse the tree to find the appropriate leaf node
-        while (!parentNode.returnChild(0).returnLeaf()) {
-            keys = parentNode.returnKeys();
-
-            // Search for the appropriate child node based on the key
-            for (int i = keys.size() - 1; i >= 0; i--) {
-                if (keys.get(i) <= key) {
-                    parentNode = (ParentNode) parentNode.returnChild(i + 1);
-                    break;
-                } else if (i == 0) parentNode = (ParentNode) parentNode.returnChild(0);
-            }
+        return searchLeaf(key, null);
+    }
+
+    /**
+     * Same as searchLeaf, but when childIndexes is given also records the index of the child followed in every parent node.
+     * childIndexes needs room for height - 1 indexes.
+     */
+    private LeafNode searchLeaf(int key, int[] childIndexes) {
+        Node currentNode = root;
+        nodeAccessCount.increment();
+        for (int level = 0; !currentNode.returnLeaf(); level++) {
+            ParentNode parentNode = (ParentNode) currentNode;
+            int childIndex = parentNode.upperBound(key);
+            if (childIndexes != null)
+                childIndexes[level] = childIndex;
+            currentNode = parentNode.returnChild(childIndex);
+            nodeAccessCount.increment();
         }
+        return (LeafNode) currentNode;
+    }
+
+    /**
+     * Adds delta to the record counts held for the children on the path recorded by searchLeaf.
+     * Only called with the structure lock held shared, so the path cannot change in between.
+     */
+    private void addToCounts(int[] childIndexes, long delta) {
+        Node node = root;
+        for (int level = 0; !node.returnLeaf(); level++) {
+            ParentNode parent = (ParentNode) node;
+            parent.addToChildCount(childIndexes[level], delta);
+            node = parent.returnChild(childIndexes[level]);
+        }
+    }
 
-        keys = parentNode.returnKeys();
-        for (int i = keys.size() - 1; i >= 0; i--) {
-        // Search for the leaf node where the key should be inserted
-            if (keys.get(i) <= key)
-                return (LeafNode) parentNode.returnChild(i + 1);
+    /**
+     * Takes the record counts again in every parent node on the path to key, from the bottom up.
+     * Used after inserting key with a split: every node the split left with a wrong count holds the new record.
+     */
+    private void refreshCounts(int key) {
+        Node node = searchLeaf(key);
+        while (!node.returnRoot()) {
+            ParentNode parent = node.returnParent();
+            parent.refreshCounts();
+            node = parent;
         }
-        return (LeafNode) parentNode.returnChild(0);
     }
 
     /**
     * Splits a leaf node when it is full and redistributes the keys and addresses.
     * @param originalNode The original leaf node to be split.
     * @param key The key to be inserted into the leaf node.
-    * @param address The address associated with the key.
+    * @param address The packed address associated with the key.
+    * @param averageRating The averageRating of the record at address.
     */
-    public void splitLeaf(LeafNode originalNode, int key, Address address) {
-        int i;
-        int keys[] = new int[maxKeys + 1];
-        Address addresses[] = new Address[maxKeys + 1];
-        LeafNode newLeaf = new LeafNode();
-
-        // Copying keys and addresses from the original node to arrays
-        for (i = 0; i < maxKeys; i++) {
-            keys[i] = originalNode.returnKey(i);
-            addresses[i] = originalNode.returnRecord(i);
-        }
-
-        // Inserting the new key and address into the appropriate position in the arrays
-        for (i = maxKeys - 1; i >= 0; i--) {
-            if (keys[i] <= key) {
-                i++;
-                keys[i] = key;
-                addresses[i] = address;
-                break;
-            }
-            keys[i + 1] = keys[i];
-            addresses[i + 1] = addresses[i];
-        }
+    public void splitLeaf(LeafNode originalNode, int key, long address, float averageRating) {
+        LeafNode newLeaf = new LeafNode(maxKeys + 1, covering);
 
-        // Clearing the old keys and addresses from the original node
-        originalNode.deleteKeys();
-        originalNode.deleteRecords();
+        // Nodes are allocated with room for maxKeys + 1 records, so the new record fits before splitting
+        originalNode.addRecord(key, address, averageRating);
 
-        // Adding keys and addresses to the original and new leaf nodes
-        for (i = 0; i < minKeysLeafNode; i++)
-            originalNode.addRecord(keys[i], addresses[i]);
-
-        for (i = minKeysLeafNode; i < maxKeys + 1; i++)
-            newLeaf.addRecord(keys[i], addresses[i]);
+        // Moving the upper half of the keys and addresses to the new leaf node
+        originalNode.moveRecordsTo(minKeysLeafNode, newLeaf);
 
         // setting old leafnode to point to new leafnode and new leafnode to point to
         newLeaf.setNext(originalNode.returnNext());
@@ -149,14 +338,14 @@ public class BPlusTree {
 
         // Setting the next pointer of the original node to point to the new leaf node
         if (originalNode.returnRoot()) {
-            ParentNode newRoot = new ParentNode();
+            ParentNode newRoot = new ParentNode(maxKeys + 1);
             originalNode.setRoot(false);
             newRoot.setRoot(true);
             newRoot.appendChild(originalNode);
             newRoot.appendChild(newLeaf);
             root = newRoot;
             height++;
-        } else if (originalNode.returnParent().returnKeys().size() < maxKeys)
+        } else if (originalNode.returnParent().returnKeyCount() < maxKeys)
             // If the parent node has space, add the new leaf node to it
             originalNode.returnParent().appendChild(newLeaf);
         else {
@@ -180,7 +369,7 @@ public class BPlusTree {
         int keys[] = new int[maxKeys + 2];
 
         // Initialize a new parent node
-        ParentNode newParentNode = new ParentNode();
+        ParentNode newParentNode = new ParentNode(maxKeys + 1);
         int key = childNode.returnSmallest();
 
         // Retrieve full and sorted lists of keys and children from the parent node
@@ -215,14 +404,14 @@ public class BPlusTree {
         // Set parent for the new parent node
         if (parentNode.returnRoot()) {
             // If the original parent is the root, create a new root
-            ParentNode newRoot = new ParentNode();
+            ParentNode newRoot = new ParentNode(maxKeys + 1);
             parentNode.setRoot(false);
             newRoot.setRoot(true);
             newRoot.appendChild(parentNode);
             newRoot.appendChild(newParentNode);
             this.root = newRoot;
             height++;
-        } else if (parentNode.returnParent().returnKeys().size() < maxKeys) {
+        } else if (parentNode.returnParent().returnKeyCount() < maxKeys) {
             // If the parent of the original parent has space, add the new parent node to it
             parentNode.returnParent().appendChild(newParentNode);
         } else {
@@ -240,32 +429,169 @@ public class BPlusTree {
      * @param key The key of the records to be deleted.
      */
     public void deleteKey(int key) {
-        ArrayList<Integer> keys;
-        LeafNode leaf;
-
-        // Loop until all records with the given key value are deleted
-        while (getRecordsWithKey(key).size() != 0) {
+        structureLock.readLock().lock();
+        try {
             // Search for the leaf node containing the key
-            leaf = searchLeaf(key);
-            keys = leaf.returnKeys();
-
-            // Delete one record and update the tree
-            for (int i = 0; i < keys.size(); i++) {
-                if (keys.get(i) == key) {
-                    leaf.deleteRecord(i);
-
-                    // If the node is not the root, update the tree
-                    if (!leaf.returnRoot())
-                        resetLeaf(leaf);
-                    break;
+            int[] path = new int[height];
+            LeafNode leaf = searchLeaf(key, path);
+            long removedRecords = 0;
+            leaf.writeLock();
+            try {
+                int index = leaf.indexOf(key);
+                if (index < 0)
+                    return;
+                // The key and its whole posting list go in one step
+                if (canDeleteInPlace(leaf, index)) {
+                    removedRecords = leaf.returnAddressCount(index);
+                    leaf.deleteRecord(index);
                 }
+            } finally {
+                leaf.writeUnlock();
+            }
+            if (removedRecords > 0) {
+                addToCounts(path, -removedRecords);
+                return;
             }
-            if (getRecordsWithKey(key).size() == 1) break;
+        } finally {
+            structureLock.readLock().unlock();
+        }
+
+        // The leaf has to be rebalanced
+        beginStructureChange();
+        try {
+            int[] path = new int[height];
+            LeafNode leaf = searchLeaf(key, path);
+            int index = leaf.indexOf(key);
+            if (index >= 0) {
+                // The counts are taken down before rebalancing, which keeps them right as it moves records and nodes around
+                addToCounts(path, -leaf.returnAddressCount(index));
+                deleteEntry(leaf, index);
+            }
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    /**
+     * Deletes a single record with the specified key from the B+ tree, leaving any other records with that key.
+     * 
+     * @param key     The key of the record to be deleted.
+     * @param address The address of the record to be deleted.
+     * @return Whether the record was in the B+ tree.
+     */
+    public boolean delete(int key, Address address) {
+        long packedAddress = address.pack();
+        structureLock.readLock().lock();
+        try {
+            int[] path = new int[height];
+            LeafNode leaf = searchLeaf(key, path);
+            boolean isRemoved = false;
+            boolean needsRebalance = false;
+            leaf.writeLock();
+            try {
+                int index = leaf.indexOf(key);
+                if (index < 0)
+                    return false;
+                if (leaf.returnAddressCount(index) > 1) {
+                    isRemoved = leaf.removeFromPosting(index, packedAddress);
+                } else if (leaf.returnPackedRecord(index) == packedAddress) {
+                    // It was the last record with this key
+                    needsRebalance = !canDeleteInPlace(leaf, index);
+                    if (!needsRebalance) {
+                        leaf.deleteRecord(index);
+                        isRemoved = true;
+                    }
+                }
+            } finally {
+                leaf.writeUnlock();
+            }
+            if (!needsRebalance) {
+                if (isRemoved)
+                    addToCounts(path, -1);
+                return isRemoved;
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+
+        // The leaf has to be rebalanced. Another writer may have changed the key in the meantime, so look again
+        beginStructureChange();
+        try {
+            int[] path = new int[height];
+            LeafNode leaf = searchLeaf(key, path);
+            int index = leaf.indexOf(key);
+            if (index < 0)
+                return false;
+            boolean isLast = leaf.returnAddressCount(index) == 1;
+            if (isLast ? leaf.returnPackedRecord(index) != packedAddress : !leaf.removeFromPosting(index, packedAddress))
+                return false;
+            // The counts are taken down before rebalancing, which keeps them right as it moves records and nodes around
+            addToCounts(path, -1);
+            if (isLast)
+                deleteEntry(leaf, index);
+            return true;
+        } finally {
+            endStructureChange();
         }
+    }
+
+    /**
+     * Whether the key at index can be removed from the leaf without touching any other node.
+     * That is the case for the root, and for any other key but the smallest, which the parents use as a separator,
+     * as long as the leaf keeps its minimum number of keys
+     */
+    private boolean canDeleteInPlace(LeafNode leaf, int index) {
+        return leaf.returnRoot() || (index > 0 && leaf.returnKeyCount() > minKeysLeafNode);
+    }
+
+    /**
+     * Marks the start of a split or rebalance, waiting for every other writer to finish first
+     */
+    private void beginStructureChange() {
+        structureLock.writeLock().lock();
+        structureVersion++;
+        // Readers must see the odd version before any change to the tree
+        VarHandle.storeStoreFence();
+    }
+
+    /**
+     * Publishes the changes made since beginStructureChange and lets the other writers in again
+     */
+    private void endStructureChange() {
+        structureVersion++;
+        structureLock.writeLock().unlock();
+    }
+
+    /**
+     * Waits until no split or rebalance is running and returns the structure version, to be checked by isUnchanged
+     */
+    private long readStructureVersion() {
+        long version;
+        while (((version = structureVersion) & 1) != 0)
+            Thread.onSpinWait();
+        return version;
+    }
+
+    /**
+     * Whether neither the leaf nor the structure of the tree changed since their versions were read
+     */
+    private boolean isUnchanged(long structure, LeafNode leaf, long version) {
+        return leaf.validate(version) && structureVersion == structure;
+    }
+
+    /**
+     * Removes the key at index from the leaf and rebalances the tree
+     */
+    private void deleteEntry(LeafNode leaf, int index) {
+        int deletedBefore = deletedCount;
+        leaf.deleteRecord(index);
+
+        // If the node is not the root, update the tree
+        if (!leaf.returnRoot())
+            resetLeaf(leaf);
+
         // Update node count
-        //System.out.println("Deletion: number of nodes deleted = " + deletedCount);
-        nodeCount -= deletedCount;
-        //bPlusTreeStats(); // Update B+ tree statistics
+        nodeCount -= deletedCount - deletedBefore;
     }
    
     /**
@@ -276,7 +602,7 @@ public class BPlusTree {
      */
     public void resetLeaf(LeafNode node) {
         // If the node already has enough keys, reset its parent and finish
-        if (node.returnKeys().size() >= minKeysLeafNode) {
+        if (node.returnKeyCount() >= minKeysLeafNode) {
             //("case 1 enough keys");
             resetParent(node.returnParent());
             return;
@@ -286,47 +612,46 @@ public class BPlusTree {
         LeafNode left = (LeafNode) node.returnParent().returnChildBefore(node);
         LeafNode right = (LeafNode) node.returnParent().returnChildAfter(node);
 
-        int needed = minKeysLeafNode - node.returnKeys().size(); // Number of keys needed to fill the node
+        int needed = minKeysLeafNode - node.returnKeyCount(); // Number of keys needed to fill the node
         int leftSpare = 0; // Number of keys the before node can spare
         int rightSpare = 0; // Number of keys the after node can spare
         ParentNode copyParent; // Copy of the parent node for updating
 
         // Calculate the number of keys that the before and after nodes can spare
         if (left != null)
-            leftSpare += left.returnKeys().size() - minKeysLeafNode;
+            leftSpare += left.returnKeyCount() - minKeysLeafNode;
 
         if (right != null)
-            rightSpare += right.returnKeys().size() - minKeysLeafNode;
+            rightSpare += right.returnKeyCount() - minKeysLeafNode;
 
         // If merging is necessary
         if (needed > rightSpare + leftSpare) {
             // Merge keys into the before and after nodes
             if (left != null && right != null) {
                 // Fill the before node with keys from the current node
-                for (int i = 0; i < maxKeys - (leftSpare + minKeysLeafNode); i++)
-                    if (i<node.returnKeys().size())
-                        left.addRecord(node.returnKey(i), node.returnRecord(i));
+                int leftRoom = maxKeys - left.returnKeyCount();
+                for (int i = 0; i < leftRoom && i < node.returnKeyCount(); i++)
+                    left.addEntry(node, i);
                 // Fill the rest into the after node
-                for (int i = maxKeys - (leftSpare + minKeysLeafNode); i < node.returnKeys().size(); i++)
-                    right.addRecord(node.returnKey(i), node.returnRecord(i));
+                for (int i = leftRoom; i < node.returnKeyCount(); i++)
+                    right.addEntry(node, i);
             } else if (left == null) {
                 // Add keys to the after node if the current node has no before node
-                for (int i = 0; i < node.returnKeys().size(); i++)
-                    right.addRecord(node.returnKey(i), node.returnRecord(i));
+                for (int i = 0; i < node.returnKeyCount(); i++)
+                    right.addEntry(node, i);
             } else {
                 // Add keys to the before node if the current node has no after node
-                for (int i = 0; i < node.returnKeys().size(); i++)
-                    left.addRecord(node.returnKey(i), node.returnRecord(i));
+                for (int i = 0; i < node.returnKeyCount(); i++)
+                    left.addEntry(node, i);
             }
             // Copy the parent node for resetting after deleting the leaf node
             copyParent = node.returnParent();
-            // Adjust the before node if it's from a different parent
-            if (left == null) {
-                if (!copyParent.returnRoot())
-                    left = searchLeaf(copyParent.returnSmallest() - 1);
-            }
-            // Redirect the before node to the after node
-            left.setNext(node.returnNext());
+            // Unlink the current node from the leaf chain in both directions. The leaf before may be under a different parent
+            LeafNode before = node.returnPrevious();
+            if (before != null)
+                before.setNext(node.returnNext());
+            else if (node.returnNext() != null)
+                node.returnNext().setPrevious(null);
             // Delete the current node
             node.removeNode();
             deletedCount++;
@@ -334,29 +659,30 @@ public class BPlusTree {
             if (left != null && right != null) {
                 // Borrow keys from the before node and the after node
                 for (int i = 0; i < leftSpare; i++) {
-                    node.addRecord(left.returnKey(left.returnKeys().size() - 1 - i),left.returnRecord(left.returnKeys().size() - 1 - i));
-                    left.deleteRecord(left.returnKeys().size() - 1 - i);
+                    node.addEntry(left, left.returnKeyCount() - 1);
+                    left.deleteRecord(left.returnKeyCount() - 1);
                 }
-                for (int i = leftSpare, j = 0; i < needed; i++, j++) {
-                    node.addRecord(right.returnKey(j), right.returnRecord(j));
-                    right.deleteRecord(j);
+                for (int i = leftSpare; i < needed; i++) {
+                    node.addEntry(right, 0);
+                    right.deleteRecord(0);
                 }
             } else if (left == null) {
                 // Borrow all keys from the after node if there's no before node
                 for (int i = 0; i < needed; i++) {
-                    node.addRecord(right.returnKey(i), right.returnRecord(i));
-                    right.deleteRecord(i);
+                    node.addEntry(right, 0);
+                    right.deleteRecord(0);
                 }
             } else {
                 // Borrow all keys from the before node if there's no after node
                 for (int i = 0; i < needed; i++) {
-                    node.addRecord(left.returnKey(left.returnKeys().size() - 1 - i),
-                            left.returnRecord(left.returnKeys().size() - 1 - i));
-                    left.deleteRecord(left.returnKeys().size() - 1 - i);
+                    node.addEntry(left, left.returnKeyCount() - 1);
+                    left.deleteRecord(left.returnKeyCount() - 1);
                 }
             }
             copyParent = node.returnParent();
         }
+        // Records moved between the children, so the parent has to take their counts again
+        copyParent.refreshCounts();
         // Update the parents after resetting
         //System.out.println("final case");
         resetParent(copyParent);
@@ -369,14 +695,13 @@ public class BPlusTree {
      * @param parent The parent node to be reset.
      */
     public void resetParent(ParentNode parent) {
+        // Keys may have moved between the children, so their smallest keys have to be taken again
+        parent.refreshKeys();
+
         // If the node is a root node
         if (parent.returnRoot()) {
-            // If the root has at least two children, simply reorganize them and return
+            // If the root has at least two children, there is nothing left to do
             if (parent.returnChildren().size() > 1) {
-                // Move the first child to the end
-                Node child = parent.returnChild(0);
-                parent.removeChild(child);
-                parent.appendChild(child);
                 return;
             }
             // If the root has only one child, eliminate the root level
@@ -389,30 +714,37 @@ public class BPlusTree {
                 return;
             }
         }
+        // If the node already has enough keys, only its ancestors need their keys taken again
+        if (parent.returnKeyCount() >= minKeysParentNode) {
+            resetParent(parent.returnParent());
+            return;
+        }
+
         ParentNode left = (ParentNode) parent.returnParent().returnChildBefore(parent);
         ParentNode right = (ParentNode) parent.returnParent().returnChildAfter(parent);
 
-        int needed = minKeysLeafNode - parent.returnKeys().size(); // Number of keys needed to fill the node
+        int needed = minKeysParentNode - parent.returnKeyCount(); // Number of keys needed to fill the node
         int leftSpare = 0; // Number of keys the before node can spare
         int rightSpare = 0; // Number of keys the after node can spare
         ParentNode copy; // Copy of the parent node for updating
 
         if (left != null)
-            leftSpare += left.returnKeys().size() - minKeysParentNode;
+            leftSpare += left.returnKeyCount() - minKeysParentNode;
 
         if (right != null)
-            rightSpare += right.returnKeys().size() - minKeysParentNode;
+            rightSpare += right.returnKeyCount() - minKeysParentNode;
 
         // If merging is necessary
         if (needed > rightSpare + leftSpare) {
             // Merge keys into the before and after nodes
             if (left != null && right != null) {
                 // Transfer as many records as possible to the before node
-                for (int i = 0; i < maxKeys - (leftSpare + minKeysParentNode) + 1 && i < parent.returnChildren().size(); i++)
+                int leftRoom = maxKeys - left.returnKeyCount();
+                for (int i = 0; i < leftRoom && i < parent.returnChildren().size(); i++)
                     left.appendChild(parent.returnChild(i));
 
                 // Transfer the remaining records to the after node
-                for (int i = maxKeys - (leftSpare + minKeysParentNode) + 1; i < parent.returnChildren().size(); i++)
+                for (int i = leftRoom; i < parent.returnChildren().size(); i++)
                     right.appendChild(parent.returnChild(i));
             }
             // If only the after node is available
@@ -453,12 +785,14 @@ public class BPlusTree {
             } else {
                 // Take all keys from the before node if there's no after node
                 for (int i = 0; i < needed; i++) {
-                    parent.appendChild(left.returnChild(left.returnChildren().size() - 1 - i), 0);
-                    left.removeChild(left.returnChild(left.returnChildren().size() - 1 - i));
+                    parent.appendChild(left.returnChild(left.returnChildren().size() - 1), 0);
+                    left.removeChild(left.returnChild(left.returnChildren().size() - 1));
                 }
             }
             copy = parent.returnParent();
         }
+        // Children moved between the nodes under copy, so it has to take their counts again
+        copy.refreshCounts();
         // Recursively update the parent nodes
         resetParent(copy);
     }
@@ -471,47 +805,27 @@ public class BPlusTree {
      */
     public ArrayList<Address> getRecordsWithKey(int key) {
         ArrayList<Address> result = new ArrayList<>();
-        Node currentNode = root;
-        ParentNode parentNode;
-
-        // Searching for leaf node with the key
-        while (!currentNode.returnLeaf()) {
-            parentNode = (ParentNode) currentNode;
-            for (int i = 0; i < parentNode.returnKeys().size(); i++) {
-                if (key <= parentNode.returnKey(i)) {
-                    currentNode = parentNode.returnChild(i);
-                    break;
-                }
-                if (i == parentNode.returnKeys().size() - 1) {
-                    currentNode = parentNode.returnChild(i+1);
-                    break;
-                }
-            }
-        }
 
-        // Finding records with the same key within the leaf node
-        LeafNode currentLeaf = (LeafNode) currentNode;
-        boolean done = false;
-        while (!done && currentLeaf != null) {
-            for (int i = 0; i < currentLeaf.returnKeys().size(); i++) {
-                if (currentLeaf.returnKey(i) == key) {
-                    result.add(currentLeaf.returnRecord(i));
-                    continue;
-                }
-                if (currentLeaf.returnKey(i) > key) {
-                    done = true;
-                    break;
-                }
-            }
-            if (!done) {
-                if (currentLeaf.returnNext() != null) {
-                    currentLeaf = currentLeaf.returnNext();
-                } else {
-                    break;
-                }
+        while (true) {
+            long structure = readStructureVersion();
+            LeafNode leaf = null;
+            long version = 0;
+            try {
+                // Keys are unique, so every record with the key is in the posting list of a single leaf entry
+                leaf = searchLeaf(key);
+                version = leaf.readVersion();
+                int index = leaf.indexOf(key);
+                if (index >= 0)
+                    leaf.addRecordsTo(index, result);
+                if (isUnchanged(structure, leaf, version))
+                    return result;
+            } catch (RuntimeException e) {
+                // Reading a node while a writer changes it can fail in any way, but only then
+                if (structureVersion == structure && (leaf == null || leaf.validate(version)))
+                    throw e;
             }
+            result.clear();
         }
-        return result;
     }
 
     /**
@@ -524,52 +838,239 @@ public class BPlusTree {
      */
     public ArrayList<Address> getRecordsWithKeyInRange(int min, int max) {
         ArrayList<Address> result = new ArrayList<>();
-        int nodeAccess = 1; // Access the root
-        Node curNode = root;
-        ParentNode parentNode;
-
-        // Searching for the leaf node with a key within the range
-        while (!curNode.returnLeaf()) {
-            parentNode = (ParentNode) curNode;
-            for (int i = 0; i < parentNode.returnKeys().size(); i++) {
-                if (min <= parentNode.returnKey(i)) {
-                    curNode = parentNode.returnChild(i);
-                    nodeAccess++;
-                    break;
+        IndexCursor cursor = scanRange(min, max, Long.MAX_VALUE);
+        while (cursor.hasNext())
+            result.add(cursor.next());
+        System.out.println("B+ Tree Search in Range: "+ String.format("%d records found with %d index nodes accessed", result.size(), cursor.getNodeAccessCount()));
+        return result;
+    }
+
+    /**
+     * Returns a cursor over the addresses of at most limit records with keys within the given range, in key order.
+     * Leaves are read one at a time as the cursor advances.
+     *
+     * @param min   The minimum value of the range.
+     * @param max   The maximum value of the range.
+     * @param limit The maximum number of addresses to return.
+     */
+    public IndexCursor scanRange(int min, int max, long limit) {
+        return new RangeCursor(min, max, limit, false);
+    }
+
+    /**
+     * Same as scanRange, but walks the leaves backwards from max, returning the largest keys first.
+     */
+    public IndexCursor scanRangeDescending(int min, int max, long limit) {
+        return new RangeCursor(min, max, limit, true);
+    }
+
+    /**
+     * Counts the records with keys within the given range from the record counts kept in the parent nodes,
+     * reading one node per level at each end of the range instead of every leaf in between.
+     * The count is exact when no writer runs at the same time.
+     *
+     * @param min The minimum value of the range.
+     * @param max The maximum value of the range.
+     */
+    public long countRange(int min, int max) {
+        if (min > max)
+            return 0;
+        return countBelow(max, true) - countBelow(min, false);
+    }
+
+    /**
+     * Number of records with keys smaller than key, i.e. the position the first record with key has in key order
+     */
+    public long rank(int key) {
+        return countBelow(key, false);
+    }
+
+    /**
+     * Returns the key of the record at position rank in key order, counting from 0.
+     * Records with the same key take one position each.
+     */
+    public int selectKey(long rank) {
+        while (true) {
+            long structure = readStructureVersion();
+            LeafNode leaf = null;
+            long version = 0;
+            try {
+                Node node = root;
+                nodeAccessCount.increment();
+                long total = node.returnRecordCount();
+                if (rank < 0 || rank >= total) {
+                    if (structureVersion == structure)
+                        throw new IndexOutOfBoundsException(String.format("Rank %d out of bounds for %d records", rank, total));
+                    continue;
                 }
-                if (i == parentNode.returnKeys().size() - 1) {
-                    curNode = parentNode.returnChild(i + 1);
-                    nodeAccess++;
-                    break;
+                long remaining = rank;
+                while (!node.returnLeaf()) {
+                    ParentNode parent = (ParentNode) node;
+                    int childIndex = 0;
+                    while (childIndex < parent.returnChildren().size() - 1 && remaining >= parent.returnChildCount(childIndex)) {
+                        remaining -= parent.returnChildCount(childIndex);
+                        childIndex++;
+                    }
+                    node = parent.returnChild(childIndex);
+                    nodeAccessCount.increment();
                 }
+                leaf = (LeafNode) node;
+                version = leaf.readVersion();
+                for (int i = 0; i < leaf.returnKeyCount(); i++) {
+                    int count = leaf.returnAddressCount(i);
+                    if (remaining < count) {
+                        int key = leaf.returnKey(i);
+                        if (isUnchanged(structure, leaf, version))
+                            return key;
+                        break;
+                    }
+                    remaining -= count;
+                }
+                // The counts on the way down did not match the leaf, which only a writer running at the same time can cause
+                if (structureLock.getReadLockCount() == 0 && isUnchanged(structure, leaf, version))
+                    throw new IllegalStateException("Record counts do not match the leaf nodes");
+            } catch (RuntimeException e) {
+                // Reading a node while a writer changes it can fail in any way, but only then
+                if (structureVersion == structure && (leaf == null || leaf.validate(version)))
+                    throw e;
             }
         }
+    }
 
-        // Finding records with keys within the range within the leaf node
-       LeafNode curLeaf = (LeafNode) curNode;
-        boolean done = false;
-        while (!done && curLeaf != null) {
-            for (int i = 0; i < curLeaf.returnKeys().size(); i++) {
-                if (curLeaf.returnKey(i) >= min && curLeaf.returnKey(i) <= max) {
-                    result.add(curLeaf.returnRecord(i));
-                    continue;
-                }
-                if (curLeaf.returnKey(i) > max) {
-                    done = true;
-                    break;
+    /**
+     * Number of records with keys smaller than key, or also equal to it when inclusive
+     */
+    private long countBelow(int key, boolean inclusive) {
+        while (true) {
+            long structure = readStructureVersion();
+            LeafNode leaf = null;
+            long version = 0;
+            try {
+                long count = 0;
+                Node node = root;
+                nodeAccessCount.increment();
+                while (!node.returnLeaf()) {
+                    // Every child before the one holding key only has smaller keys
+                    ParentNode parent = (ParentNode) node;
+                    int childIndex = parent.upperBound(key);
+                    for (int i = 0; i < childIndex; i++)
+                        count += parent.returnChildCount(i);
+                    node = parent.returnChild(childIndex);
+                    nodeAccessCount.increment();
                 }
+                leaf = (LeafNode) node;
+                version = leaf.readVersion();
+                int end = inclusive ? leaf.upperBound(key) : leaf.lowerBound(key);
+                for (int i = 0; i < end; i++)
+                    count += leaf.returnAddressCount(i);
+                if (isUnchanged(structure, leaf, version))
+                    return count;
+            } catch (RuntimeException e) {
+                // Reading a node while a writer changes it can fail in any way, but only then
+                if (structureVersion == structure && (leaf == null || leaf.validate(version)))
+                    throw e;
             }
-            if (!done) {
-                if (curLeaf.returnNext() != null) {
-                    curLeaf = (LeafNode) curLeaf.returnNext();
-                    nodeAccess++;
+        }
+    }
+
+    /**
+     * Reads each leaf optimistically like getRecordsWithKey. A leaf that changed while it was read is read again
+     * from the next key not returned yet, so writers running alongside never make the cursor skip or repeat a key.
+     */
+    private class RangeCursor extends IndexCursor {
+        private final int min;
+        private final int max;
+        private final int step;
+        // Next key to fetch: the smallest key not fetched yet, or the largest one when descending
+        private long resume;
+        // Leaf to read next, or null to search for the leaf of resume again
+        private LeafNode nextLeaf;
+        private long structure;
+
+        RangeCursor(int min, int max, long limit, boolean descending) {
+            super(limit);
+            this.min = min;
+            this.max = max;
+            this.step = descending ? -1 : 1;
+            this.resume = descending ? max : min;
+        }
+
+        protected boolean fetchLeaf() {
+            while (resume >= min && resume <= max) {
+                LeafNode leaf = nextLeaf;
+                if (leaf == null) {
+                    // Searching for the leaf node where the next key is or would be
+                    structure = readStructureVersion();
+                    countNodeAccesses(height); // One node per level on the way down
+                    try {
+                        leaf = searchLeaf((int) resume);
+                    } catch (RuntimeException e) {
+                        if (structureVersion == structure)
+                            throw e;
+                        continue;
+                    }
                 } else {
-                    break;
+                    countNodeAccesses(1);
+                    nodeAccessCount.increment();
+                }
+
+                long version = 0;
+                try {
+                    version = leaf.readVersion();
+                    long last = resume - step;
+                    boolean end = false;
+                    int i = step > 0 ? leaf.lowerBound((int) resume) : leaf.upperBound((int) resume) - 1;
+                    for (; i >= 0 && i < leaf.returnKeyCount(); i += step) {
+                        int key = leaf.returnKey(i);
+                        if (key < min || key > max) {
+                            end = true;
+                            break;
+                        }
+                        leaf.forEachRecord(i, (address, averageRating) -> add(key, address, averageRating));
+                        last = key;
+                    }
+                    LeafNode next = step > 0 ? leaf.returnNext() : leaf.returnPrevious();
+                    if (isUnchanged(structure, leaf, version)) {
+                        resume = last + step;
+                        nextLeaf = next;
+                        return !end && next != null && resume >= min && resume <= max;
+                    }
+                } catch (RuntimeException e) {
+                    // Reading a node while a writer changes it can fail in any way, but only then
+                    if (isUnchanged(structure, leaf, version))
+                        throw e;
                 }
+                // The leaf changed under the cursor, drop what was read and search again
+                clearLeaf();
+                nextLeaf = null;
             }
+            return false;
         }
-        System.out.println("B+ Tree Search in Range: "+ String.format("%d records found with %d index nodes accessed", result.size(), nodeAccess));
-        return result;
+    }
+
+    /**
+     * Heap nodes do not outlive the process, so the tree always has to be rebuilt.
+     */
+    public boolean isRestored() {
+        return false;
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    public long getNodeAccessCount() {
+        return nodeAccessCount.sum();
+    }
+
+    public void resetStatistics() {
+        nodeAccessCount.reset();
+    }
+
+    public int getDeletedNodeCount() {
+        return deletedCount;
     }
 
     /**
@@ -578,14 +1079,14 @@ public class BPlusTree {
     public void bPlusTreeStats() {
         ArrayList<Integer> rootKeys = new ArrayList<>();
         ArrayList<Integer> firstKeys = new ArrayList<>();
-        ParentNode rootCopy = (ParentNode) root;
-        Node first = rootCopy.returnChild(0);
+        // A root that is still a leaf is its own first node
+        Node first = root.returnLeaf() ? root : ((ParentNode) root).returnChild(0);
 
-        for (int i = 0; i < root.returnKeys().size(); i++) {
+        for (int i = 0; i < root.returnKeyCount(); i++) {
             rootKeys.add(root.returnKey(i));
         }
 
-        for (int i = 0; i < first.returnKeys().size(); i++) {
+        for (int i = 0; i < first.returnKeyCount(); i++) {
             firstKeys.add(first.returnKey(i));
         }
         System.out.println("B+ Tree Statistics");
@@ -1,60 +1,96 @@
 import java.nio.ByteBuffer;
 
 /**
- * Temporary Block interface object to interact with bytes in the disk
+ * Block interface object to interact with bytes in the disk.
+ * A Block obtained from the Disk is a view over its slice of the disk, so reads and writes go straight to the backing bytes.
  */
 public class Block {
+  /**
+   * Default block size. Can be overridden with StorageConfiguration.Builder.setPageSize
+   */
   public static final Integer BLOCK_BYTE_SIZE = 200;
   public static final Integer BLOCK_HEADER_BYTE_SIZE = 4;
-  public static final Integer MAX_RECORDS_PER_BLOCK = (BLOCK_BYTE_SIZE - BLOCK_HEADER_BYTE_SIZE)/Record.RECORD_BYTE_SIZE;
   private ByteBuffer bytes;
 
+  // Set when this block is a view over a slice of a disk
+  private Disk disk;
+  private int blockNumber;
+
   public Block() {
-    bytes = ByteBuffer.allocate(BLOCK_BYTE_SIZE);
-    bytes.putInt(0); // block header contains number of records initially 0
+    this(BLOCK_BYTE_SIZE);
+  }
+
+  public Block(int blockByteSize) {
+    bytes = ByteBuffer.allocate(blockByteSize);
+    bytes.putInt(0, 0); // block header contains number of records initially 0
   }
 
-  public Block(byte[] bytes) {
-    this.bytes =  ByteBuffer.wrap(bytes);
+  /**
+   * Block viewing the given slice of a disk
+   */
+  Block(ByteBuffer view, Disk disk, int blockNumber) {
+    this.bytes = view;
+    this.disk = disk;
+    this.blockNumber = blockNumber;
   }
 
   public void insertRecordAt(int position, Record record) {
-    byte[] recordBytes = record.marshal();
     int numRecords = bytes.getInt(0);
 
     if (position < 0 || position > numRecords) {
         throw new IllegalArgumentException("Invalid position for record insertion");
     }
 
-    bytes.position(BLOCK_HEADER_BYTE_SIZE + position * Record.RECORD_BYTE_SIZE);
+    int recordPosition = BLOCK_HEADER_BYTE_SIZE + position * Record.RECORD_BYTE_SIZE;
 
     int remainingBytes = (numRecords - position) * Record.RECORD_BYTE_SIZE;
     byte[] remainingData = new byte[remainingBytes];
-    bytes.get(remainingData);
+    bytes.get(recordPosition, remainingData);
 
-    bytes.position(BLOCK_HEADER_BYTE_SIZE + position * Record.RECORD_BYTE_SIZE);
-
-    bytes.put(recordBytes);
-    bytes.put(remainingData);
+    record.marshal(bytes, recordPosition);
+    bytes.put(recordPosition + Record.RECORD_BYTE_SIZE, remainingData);
 
     setRecordCount(numRecords + 1);
   }
 
   public void insertRecord(Record record) {
-    byte[] recordBytes = record.marshal();
     int numRecords = bytes.getInt(0);
 
-    if (recordBytes.length > BLOCK_BYTE_SIZE - BLOCK_HEADER_BYTE_SIZE - numRecords * Record.RECORD_BYTE_SIZE) {
+    if (Record.RECORD_BYTE_SIZE > bytes.capacity() - BLOCK_HEADER_BYTE_SIZE - numRecords * Record.RECORD_BYTE_SIZE) {
         throw new IllegalArgumentException("Data size exceeds remaining block capacity");
     }
 
-    // Move the position to the end of the block header
-    bytes.position(BLOCK_HEADER_BYTE_SIZE + numRecords * Record.RECORD_BYTE_SIZE);
-
-    bytes.put(recordBytes);
+    // Write right after the last record in the block
+    record.marshal(bytes, BLOCK_HEADER_BYTE_SIZE + numRecords * Record.RECORD_BYTE_SIZE);
     setRecordCount(numRecords + 1);
   }
 
+  /**
+   * Overwrites the record at recordIndex, which may be at most the current number of records
+   */
+  public void setRecordAt(int recordIndex, Record record) {
+    int numRecords = bytes.getInt(0);
+
+    if (recordIndex < 0 || recordIndex > numRecords) {
+        throw new IllegalArgumentException("Invalid record index");
+    }
+
+    record.marshal(bytes, BLOCK_HEADER_BYTE_SIZE + recordIndex * Record.RECORD_BYTE_SIZE);
+  }
+
+  /**
+   * Overwrites the record at recordIndex with a byte for byte copy of the viewed record
+   */
+  public void setRecordAt(int recordIndex, RecordView record) {
+    int numRecords = bytes.getInt(0);
+
+    if (recordIndex < 0 || recordIndex > numRecords) {
+        throw new IllegalArgumentException("Invalid record index");
+    }
+
+    bytes.put(BLOCK_HEADER_BYTE_SIZE + recordIndex * Record.RECORD_BYTE_SIZE, record.bytes, record.offset, Record.RECORD_BYTE_SIZE);
+  }
+
   public Record getRecordAt(int recordIndex) {
     int numRecords = bytes.getInt(0);
 
@@ -67,15 +103,32 @@ public class Block {
     return getRecordFromBytes(recordPosition);
   }
 
+  /**
+   * Points view at the record at recordIndex without copying or decoding it
+   */
+  public RecordView getRecordViewAt(int recordIndex, RecordView view) {
+    if (recordIndex < 0 || recordIndex >= bytes.getInt(0)) {
+        throw new IllegalArgumentException("Invalid record index");
+    }
+
+    return view.wrap(bytes, BLOCK_HEADER_BYTE_SIZE + recordIndex * Record.RECORD_BYTE_SIZE);
+  }
+
   public Record getRecordFromBytes(Integer bytePosition) {
-    byte[] recordBytes = new byte[Record.RECORD_BYTE_SIZE];
-    bytes.position(bytePosition).get(recordBytes);
-    return Record.unmarshal(recordBytes);
+    return Record.unmarshal(bytes, bytePosition);
   }
 
   public boolean isFull() {
     int numRecords = getRecordCount();
-    return numRecords >= MAX_RECORDS_PER_BLOCK;
+    return numRecords >= getMaxRecordCount();
+  }
+
+  public int getMaxRecordCount() {
+    return getMaxRecordsPerBlock(bytes.capacity());
+  }
+
+  public static int getMaxRecordsPerBlock(int blockByteSize) {
+    return (blockByteSize - BLOCK_HEADER_BYTE_SIZE)/Record.RECORD_BYTE_SIZE;
   }
 
   public Integer getRecordCount() {
@@ -86,6 +139,59 @@ public class Block {
     bytes.putInt(0, count);
   }
 
+  /**
+   * Overwrites every byte of this block with the bytes of other
+   */
+  public void copyFrom(Block other) {
+    bytes.put(0, other.bytes, 0, bytes.capacity());
+  }
+
+  /**
+   * Raw accessors for pages that lay out their own bytes instead of holding records, e.g. DiskBPlusTree pages
+   */
+  public int getInt(int position) {
+    return bytes.getInt(position);
+  }
+
+  public void putInt(int position, int value) {
+    bytes.putInt(position, value);
+  }
+
+  public long getLong(int position) {
+    return bytes.getLong(position);
+  }
+
+  public void putLong(int position, long value) {
+    bytes.putLong(position, value);
+  }
+
+  /**
+   * Copies length bytes from position from to position to within this block. The ranges may overlap
+   */
+  public void moveBytes(int from, int to, int length) {
+    if (bytes.hasArray()) {
+      System.arraycopy(bytes.array(), bytes.arrayOffset() + from, bytes.array(), bytes.arrayOffset() + to, length);
+    } else {
+      byte[] moved = new byte[length];
+      bytes.get(from, moved);
+      bytes.put(to, moved);
+    }
+  }
+
+  /**
+   * Copies length bytes starting at from in other to position to in this block
+   */
+  public void copyBytesFrom(Block other, int from, int to, int length) {
+    bytes.put(to, other.bytes, from, length);
+  }
+
+  /**
+   * Whether this block is a view over the slice of disk at blockNumber, in which case writes have already reached the disk
+   */
+  public boolean isViewOf(Disk disk, int blockNumber) {
+    return this.disk == disk && this.blockNumber == blockNumber;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -96,7 +202,10 @@ public class Block {
     return sb.toString();
   }
 
-  public byte[] marshal() {
-    return this.bytes.array();
+  /**
+   * Returns the bytes backing this block. Only intended for copying a block onto another slice of disk
+   */
+  public ByteBuffer marshal() {
+    return this.bytes;
   }
 }
@@ -0,0 +1,157 @@
+import java.util.HashMap;
+
+/**
+ * Keeps a fixed number of blocks in memory frames between the StorageManager and the Disk.
+ * Blocks are pinned while in use and can only be evicted once every pin is released. Dirty blocks are written back to the disk on eviction.
+ */
+public class BufferPool {
+  private Disk disk;
+  private EvictionPolicy evictionPolicy;
+
+  private Block[] frames;
+  private int[] frameBlockNumbers;
+  private int[] pinCounts;
+  private boolean[] dirty;
+  private HashMap<Integer, Integer> pageTable; // block number -> frame id
+  private int usedFrames = 0;
+
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long writeBackCount = 0;
+
+  public BufferPool(Disk disk, int frameCount, EvictionPolicy evictionPolicy) {
+    if (frameCount < 2) {
+      throw new IllegalArgumentException("Buffer pool needs at least 2 frames");
+    }
+    this.disk = disk;
+    this.evictionPolicy = evictionPolicy;
+    this.frames = new Block[frameCount];
+    this.frameBlockNumbers = new int[frameCount];
+    this.pinCounts = new int[frameCount];
+    this.dirty = new boolean[frameCount];
+    this.pageTable = new HashMap<>(frameCount * 2);
+  }
+
+  /**
+   * Pins the block, reading it from the disk if it is not in the pool yet
+   */
+  public Block pin(int blockNumber) {
+    return pin(blockNumber, false);
+  }
+
+  /**
+   * Pins the block. Scans should pass sequential so that the blocks they read do not push out the hot set
+   */
+  public Block pin(int blockNumber, boolean sequential) {
+    Integer frameId = pageTable.get(blockNumber);
+    if (frameId != null) {
+      hitCount++;
+      pinCounts[frameId]++;
+      evictionPolicy.recordAccess(frameId, sequential);
+      return frames[frameId];
+    }
+    missCount++;
+    int newFrameId = allocateFrame(blockNumber, sequential);
+    frames[newFrameId].copyFrom(disk.getBlock(blockNumber));
+    return frames[newFrameId];
+  }
+
+  /**
+   * Pins a block that has not been written yet. Nothing is read from the disk; the block starts off empty and dirty
+   */
+  public Block pinNew(int blockNumber) {
+    return pinNew(blockNumber, false);
+  }
+
+  /**
+   * Pins a block that has not been written yet. Bulk writes should pass sequential so that they do not push out the hot set
+   */
+  public Block pinNew(int blockNumber, boolean sequential) {
+    Integer frameId = pageTable.get(blockNumber);
+    if (frameId == null) {
+      frameId = allocateFrame(blockNumber, sequential);
+    } else {
+      pinCounts[frameId]++;
+    }
+    frames[frameId].setRecordCount(0);
+    dirty[frameId] = true;
+    return frames[frameId];
+  }
+
+  /**
+   * Releases one pin on the block. Pass isDirty if the block was changed while pinned
+   */
+  public void unpin(int blockNumber, boolean isDirty) {
+    Integer frameId = pageTable.get(blockNumber);
+    if (frameId == null || pinCounts[frameId] == 0) {
+      throw new IllegalArgumentException(String.format("Block %d is not pinned", blockNumber));
+    }
+    pinCounts[frameId]--;
+    dirty[frameId] |= isDirty;
+  }
+
+  /**
+   * Writes every dirty block back to the disk
+   */
+  public void flush() {
+    for (int frameId = 0; frameId < usedFrames; frameId++) {
+      if (dirty[frameId]) {
+        writeBack(frameId);
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  public long getMissCount() {
+    return missCount;
+  }
+
+  public long getWriteBackCount() {
+    return writeBackCount;
+  }
+
+  public void resetStatistics() {
+    hitCount = 0;
+    missCount = 0;
+    writeBackCount = 0;
+  }
+
+  public int getFrameCount() {
+    return frames.length;
+  }
+
+  /**
+   * Finds an empty frame, or evicts one, and pins blockNumber in it
+   */
+  private int allocateFrame(int blockNumber, boolean sequential) {
+    int frameId;
+    if (usedFrames < frames.length) {
+      frameId = usedFrames++;
+      frames[frameId] = new Block(disk.getBlockSize());
+    } else {
+      frameId = evictionPolicy.chooseVictim(id -> pinCounts[id] > 0);
+      if (frameId == -1) {
+        throw new IllegalStateException("Every buffer pool frame is pinned");
+      }
+      if (dirty[frameId]) {
+        writeBack(frameId);
+      }
+      pageTable.remove(frameBlockNumbers[frameId]);
+    }
+    frameBlockNumbers[frameId] = blockNumber;
+    pinCounts[frameId] = 1;
+    dirty[frameId] = false;
+    pageTable.put(blockNumber, frameId);
+    evictionPolicy.recordLoad(frameId, blockNumber, sequential);
+    return frameId;
+  }
+
+  private void writeBack(int frameId) {
+    disk.writeBlock(frameBlockNumbers[frameId], frames[frameId]);
+    dirty[frameId] = false;
+    writeBackCount++;
+  }
+}
@@ -0,0 +1,54 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Approximates LRU with a reference bit per frame and a clock hand sweeping over the frames.
+ * Sequential accesses do not set the reference bit, and the frame of the last sequential load is reused before the hand moves on,
+ * so a scan cycles through a single frame instead of clearing the reference bits of the whole pool.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+  private boolean[] referenced;
+  private boolean[] tracked;
+  private int hand = 0;
+  private int lastSequentialFrame = -1;
+
+  public ClockEvictionPolicy(int frameCount) {
+    referenced = new boolean[frameCount];
+    tracked = new boolean[frameCount];
+  }
+
+  public void recordLoad(int frameId, int blockNumber, boolean sequential) {
+    tracked[frameId] = true;
+    referenced[frameId] = !sequential;
+    lastSequentialFrame = sequential ? frameId : -1;
+  }
+
+  public void recordAccess(int frameId, boolean sequential) {
+    if (!sequential) {
+      referenced[frameId] = true;
+    }
+  }
+
+  public int chooseVictim(IntPredicate isPinned) {
+    int frameId = lastSequentialFrame;
+    if (frameId != -1 && tracked[frameId] && !referenced[frameId] && !isPinned.test(frameId)) {
+      tracked[frameId] = false;
+      return frameId;
+    }
+
+    // Two full sweeps clear every reference bit, so after that every frame left is pinned
+    for (int i = 0; i < 2 * tracked.length + 1; i++) {
+      frameId = hand;
+      hand = (hand + 1) % tracked.length;
+      if (!tracked[frameId] || isPinned.test(frameId)) {
+        continue;
+      }
+      if (referenced[frameId]) {
+        referenced[frameId] = false;
+        continue;
+      }
+      tracked[frameId] = false;
+      return frameId;
+    }
+    return -1;
+  }
+}
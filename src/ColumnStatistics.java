@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+/**
+ * Statistics of the numVotes column gathered by reading the numVotes index once in key order, like ANALYZE does:
+ * the number of records, the number of distinct values, the most common values with their frequencies,
+ * an equi-depth histogram of the other values, and how closely the physical order of the records follows their numVotes order.
+ * The planner estimates the selectivity of a predicate and how scattered its matches are from them.
+ */
+public class ColumnStatistics {
+    public static final int DEFAULT_BUCKET_COUNT = 100;
+    // A value is only kept as a most common value if it is this many times as frequent as the average value
+    private static final double COMMON_VALUE_FACTOR = 1.25;
+
+    private final long recordCount;
+    private final long distinctCount;
+    // Most common values in ascending order, and the fraction of the records holding each
+    private final int[] commonValues;
+    private final double[] commonFrequencies;
+    private final double commonFrequencyTotal;
+    // Equi-depth histogram of the records not holding a common value. bounds[0] is the smallest such value and
+    // bounds[bucketCount] the largest, each bucket (bounds[i], bounds[i + 1]] holds about the same number of records
+    private final int[] bounds;
+    // Correlation between the numVotes order and the physical order of the records, between -1 and 1
+    private final double correlation;
+
+    private ColumnStatistics(long recordCount, long distinctCount, int[] commonValues, double[] commonFrequencies, int[] bounds, double correlation) {
+        this.recordCount = recordCount;
+        this.distinctCount = distinctCount;
+        this.commonValues = commonValues;
+        this.commonFrequencies = commonFrequencies;
+        this.bounds = bounds;
+        this.correlation = correlation;
+        double total = 0;
+        for (double frequency : commonFrequencies) {
+            total += frequency;
+        }
+        this.commonFrequencyTotal = total;
+    }
+
+    /**
+     * Reads every entry the cursor returns, which must be in key order, and builds the statistics from them
+     *
+     * @param cursor          Cursor over the whole index
+     * @param recordsPerBlock Maximum number of records in a block, to turn addresses into positions
+     * @param bucketCount     Number of histogram buckets, also the most common values kept
+     */
+    public static ColumnStatistics analyze(IndexCursor cursor, int recordsPerBlock, int bucketCount) {
+        if (bucketCount < 1) {
+            throw new IllegalArgumentException("Histogram needs at least one bucket");
+        }
+        // Every distinct value with the number of records holding it, in key order
+        int[] values = new int[1024];
+        long[] counts = new long[1024];
+        int distinctCount = 0;
+        long count = 0;
+        // Running means and co-moments of (rank, position), so the correlation is computed in one pass
+        double meanRank = 0;
+        double meanPosition = 0;
+        double rankMoment = 0;
+        double positionMoment = 0;
+        double coMoment = 0;
+
+        while (cursor.hasNext()) {
+            long address = cursor.nextPackedAddress();
+            int key = cursor.getKey();
+            if (distinctCount == 0 || key != values[distinctCount - 1]) {
+                if (distinctCount == values.length) {
+                    values = Arrays.copyOf(values, distinctCount * 2);
+                    counts = Arrays.copyOf(counts, distinctCount * 2);
+                }
+                values[distinctCount++] = key;
+            }
+            counts[distinctCount - 1]++;
+            count++;
+
+            double position = (double) Address.idOf(address) * recordsPerBlock + Address.offsetOf(address);
+            double rankDelta = (count - 1) - meanRank;
+            double positionDelta = position - meanPosition;
+            meanRank += rankDelta / count;
+            meanPosition += positionDelta / count;
+            rankMoment += rankDelta * ((count - 1) - meanRank);
+            positionMoment += positionDelta * (position - meanPosition);
+            coMoment += rankDelta * (position - meanPosition);
+        }
+
+        if (count == 0) {
+            return new ColumnStatistics(0, 0, new int[0], new double[0], new int[0], 0);
+        }
+
+        // The most frequent values above the threshold, at most bucketCount of them
+        boolean[] isCommon = new boolean[distinctCount];
+        Integer[] byCount = new Integer[distinctCount];
+        for (int i = 0; i < distinctCount; i++) {
+            byCount[i] = i;
+        }
+        final long[] valueCounts = counts;
+        Arrays.sort(byCount, (a, b) -> Long.compare(valueCounts[b], valueCounts[a]));
+        double threshold = Math.max(1, COMMON_VALUE_FACTOR * count / distinctCount);
+        int commonCount = 0;
+        long otherCount = count;
+        while (commonCount < Math.min(bucketCount, distinctCount) && counts[byCount[commonCount]] > threshold) {
+            isCommon[byCount[commonCount]] = true;
+            otherCount -= counts[byCount[commonCount]];
+            commonCount++;
+        }
+        int[] commonValues = new int[commonCount];
+        double[] commonFrequencies = new double[commonCount];
+        int common = 0;
+        for (int i = 0; i < distinctCount; i++) {
+            if (isCommon[i]) {
+                commonValues[common] = values[i];
+                commonFrequencies[common] = (double) counts[i] / count;
+                common++;
+            }
+        }
+
+        // Bounds of the histogram over the other values, taken at evenly spaced ranks among their records
+        int[] bounds = new int[0];
+        if (otherCount > 0) {
+            int buckets = (int) Math.min(bucketCount, otherCount);
+            bounds = new int[buckets + 1];
+            int bound = 0;
+            long rank = 0;
+            for (int i = 0; i < distinctCount && bound <= buckets; i++) {
+                if (isCommon[i]) {
+                    continue;
+                }
+                rank += counts[i];
+                // The values of records rank - counts[i] to rank - 1
+                while (bound <= buckets && bound * (otherCount - 1) / buckets < rank) {
+                    bounds[bound++] = values[i];
+                }
+            }
+        }
+        double correlation = rankMoment > 0 && positionMoment > 0 ? coMoment / Math.sqrt(rankMoment * positionMoment) : 1;
+        return new ColumnStatistics(count, distinctCount, commonValues, commonFrequencies, bounds, correlation);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getDistinctCount() {
+        return distinctCount;
+    }
+
+    public double getCorrelation() {
+        return correlation;
+    }
+
+    public int getBucketCount() {
+        return Math.max(0, bounds.length - 1);
+    }
+
+    /**
+     * Returns a copy of the histogram bounds, from the smallest to the largest value
+     */
+    public int[] getHistogramBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Returns a copy of the most common values, in ascending order
+     */
+    public int[] getCommonValues() {
+        return commonValues.clone();
+    }
+
+    /**
+     * Returns a copy of the fraction of the records holding each of the most common values
+     */
+    public double[] getCommonFrequencies() {
+        return commonFrequencies.clone();
+    }
+
+    /**
+     * Estimated fraction of the records with numVotes between min and max inclusive
+     */
+    public double estimateSelectivity(int min, int max) {
+        if (recordCount == 0 || min > max) {
+            return 0;
+        }
+        double selectivity = 0;
+        boolean isCommonValue = false;
+        for (int i = 0; i < commonValues.length; i++) {
+            if (commonValues[i] >= min && commonValues[i] <= max) {
+                selectivity += commonFrequencies[i];
+                isCommonValue = true;
+            }
+        }
+        if (min == max) {
+            if (isCommonValue) {
+                return selectivity;
+            }
+            if (bounds.length == 0 || min < bounds[0] || min > bounds[bounds.length - 1]) {
+                return 0;
+            }
+            // Every other value is assumed to be held by as many records
+            return (1 - commonFrequencyTotal) / Math.max(1, distinctCount - commonValues.length);
+        }
+        if (bounds.length > 0) {
+            double histogramFraction = fractionAtMost(max) - (min == Integer.MIN_VALUE ? 0 : fractionAtMost(min - 1));
+            selectivity += histogramFraction * (1 - commonFrequencyTotal);
+        }
+        return Math.min(1, Math.max(0, selectivity));
+    }
+
+    /**
+     * Estimated fraction of the records with numVotes at most value, interpolating linearly within a bucket
+     */
+    private double fractionAtMost(int value) {
+        int buckets = bounds.length - 1;
+        if (value < bounds[0]) {
+            return 0;
+        }
+        if (value >= bounds[buckets]) {
+            return 1;
+        }
+        // Last bound at most value, so that a value repeated over several bounds counts all of their buckets
+        int low = 0;
+        int high = buckets;
+        while (low + 1 < high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        double width = (double) bounds[low + 1] - bounds[low];
+        return (low + ((double) value - bounds[low]) / width) / buckets;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Records: %d, Distinct Values: %d, Common Values: %d(%.1f%% of records), Histogram Buckets: %d, Correlation: %.3f",
+                recordCount, distinctCount, commonValues.length, commonFrequencyTotal * 100, getBucketCount(), correlation);
+    }
+}
@@ -2,10 +2,12 @@ public interface CrashRecovery {
 
   /**
    * Only INSERT and DELETE required for recovery since UPDATE is essentially DELETE + INSERT
+   * BULK_LOAD only marks a range of blocks that were written straight to disk
    */
   enum OPERATION {
     INSERT((byte) 0),
-    DELETE((byte) 1);
+    DELETE((byte) 1),
+    BULK_LOAD((byte) 2);
 
     private final byte value;
     public static Integer BYTE_SIZE = 1;
@@ -27,18 +29,38 @@ public interface CrashRecovery {
         return INSERT;
       } else if (b == (byte) 1) {
         return DELETE;
+      } else if (b == (byte) 2) {
+        return BULK_LOAD;
       } else {
         throw new IllegalArgumentException("bytes did not correspond to an enum value");
       }
     }
   }
 
-  // Log an operation
+  // Log an operation and wait until it is as durable as the log promises
   void logOperation(OPERATION operation, Record r);
 
-  // Restore DB from Log after a crash
+  // Append an operation without waiting for it to be durable. Returns its log sequence number, which increases with every operation
+  long appendOperation(OPERATION operation, Record r);
+
+  // Wait until the operation with the log sequence number is as durable as the log promises
+  void awaitDurable(long lsn);
+
+  // Log sequence number of the last operation appended, 0 if there is none
+  long getLastLsn();
+
+  // Log a single marker for blocks written by a bulk load. The blocks must already be on disk
+  void logBulkLoad(int firstBlockNumber, int lastBlockNumber);
+
+  // Force every operation logged so far to disk, whatever the durability mode
+  void flush();
+
+  // Restore DB from Log after a crash, replaying the operations after the last checkpoint of the storage
   void restore(StorageManager storageManager);
 
-  // Periodically garbage collect logs to keep the size of the crash recovery component small
-  void checkpoint();
+  // Drop the operations up to the log sequence number, whose effects the storage has made durable
+  void checkpoint(long lsn);
+
+  // Force what is still pending and release the log. Nothing may be logged afterwards
+  void close();
 }
@@ -2,47 +2,192 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Streams a TSV file into the StorageManager.
+ * A reader thread cuts the file into chunks of lines, a pool of workers parses the chunks in parallel,
+ * and the calling thread bulk loads the parsed chunks in file order.
+ * At most a few chunks per worker are in flight at any time, so memory does not grow with the size of the file.
+ */
 public class DataSeeder {
-  public static void seed(String filePath, StorageManager storageManager) {
-    ArrayList<Record> records = new ArrayList<Record>();
+  private static final int CHUNK_LINE_COUNT = 8192;
+  private static final int HEAD_RECORD_COUNT = 10;
 
-    try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-      String line;
+  public static void seed(String filePath, StorageManager storageManager) {
+    BufferedReader br;
+    try {
+      br = new BufferedReader(new FileReader(filePath));
       br.readLine(); // skip header row
+    } catch (IOException e) {
+      System.err.println(String.format("Could not read file at filePath %s", filePath));
+      e.printStackTrace();
+      return;
+    }
+
+    int parserCount = Runtime.getRuntime().availableProcessors();
+    ExecutorService parsers = Executors.newFixedThreadPool(parserCount);
+    // Parsed chunks in file order. A null chunk marks the end of the file
+    BlockingQueue<Future<Record[]>> chunks = new ArrayBlockingQueue<>(parserCount * 2);
+
+    Thread reader = new Thread(() -> readChunks(br, filePath, parsers, chunks), "DataSeeder-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    try {
+      // A file-backed disk grows with its records, an in-memory one is limited to DISK_BYTE_SIZE
+      long maxSeedByteSize = storageManager.disk.isPersistent() ? Long.MAX_VALUE : Disk.DISK_BYTE_SIZE;
+      ChunkIterator records = new ChunkIterator(chunks, maxSeedByteSize);
+      storageManager.bulkLoad(records);
+
+      System.out.println("#####\tSuccessfully seeded data. Head:\t#####");
+      for (Record r : records.head) {
+        System.out.println(r);
+      }
+      System.out.println();
+    } finally {
+      reader.interrupt();
+      parsers.shutdownNow();
+    }
+  }
 
+  /**
+   * Runs on the reader thread. Hands each chunk of lines to the parsers, blocking while too many chunks are in flight
+   */
+  private static void readChunks(BufferedReader br, String filePath, ExecutorService parsers, BlockingQueue<Future<Record[]>> chunks) {
+    try (br) {
+      String[] lines = new String[CHUNK_LINE_COUNT];
+      int lineCount = 0;
+      String line;
       while ((line = br.readLine()) != null) {
-          String[] parts = line.split("\t");
+        lines[lineCount++] = line;
+        if (lineCount == CHUNK_LINE_COUNT) {
+          String[] chunk = lines;
+          chunks.put(parsers.submit(() -> parseChunk(chunk, CHUNK_LINE_COUNT)));
+          lines = new String[CHUNK_LINE_COUNT];
+          lineCount = 0;
+        }
+      }
+      if (lineCount > 0) {
+        String[] chunk = lines;
+        int chunkLineCount = lineCount;
+        chunks.put(parsers.submit(() -> parseChunk(chunk, chunkLineCount)));
+      }
+      chunks.put(CompletableFuture.completedFuture(null));
+    } catch (IOException e) {
+      System.err.println(String.format("Could not read file at filePath %s", filePath));
+      e.printStackTrace();
+      try {
+        chunks.put(CompletableFuture.completedFuture(null));
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Record[] parseChunk(String[] lines, int lineCount) {
+    Record[] records = new Record[lineCount];
+    int recordCount = 0;
+    for (int i = 0; i < lineCount; i++) {
+      Record record = parseLine(lines[i]);
+      if (record != null) {
+        records[recordCount++] = record;
+      }
+    }
+    return recordCount == lineCount ? records : Arrays.copyOf(records, recordCount);
+  }
+
+  /**
+   * Splits on tabs by hand rather than with String.split
+   */
+  private static Record parseLine(String line) {
+    int firstTab = line.indexOf('\t');
+    int secondTab = firstTab == -1 ? -1 : line.indexOf('\t', firstTab + 1);
+
+    if (secondTab == -1 || line.indexOf('\t', secondTab + 1) != -1) {
+      System.err.println(String.format("Expected 3 columns but received: %s", line));
+      return null;
+    }
+
+    String tconst = line.substring(0, firstTab);
+    Float averageRating = Float.parseFloat(line.substring(firstTab + 1, secondTab));
+    Integer numVotes = Integer.parseInt(line, secondTab + 1, line.length(), 10);
+    return new Record(tconst, averageRating, numVotes, (short) 0);
+  }
 
-          if (parts.length == 3) {
-              String tconst = parts[0];
-              Float averageRating = Float.parseFloat(parts[1]);
-              Integer numVotes = Integer.parseInt(parts[2]);
+  /**
+   * Iterates over the records of each parsed chunk in file order, waiting for chunks that are still being parsed
+   */
+  private static class ChunkIterator implements Iterator<Record> {
+    private BlockingQueue<Future<Record[]>> chunks;
+    private Record[] chunk = new Record[0];
+    private int index = 0;
+    private boolean finished = false;
+    private long recordCount = 0;
+    private ArrayList<Record> head = new ArrayList<Record>();
+    private final long maxSeedByteSize;
 
-              Record record = new Record(tconst, averageRating, numVotes, (short) 0);
-              records.add(record);
-          } else {
-              System.err.println(String.format("Expected 3 columns but received: %s", parts.toString()));
-          }
+    ChunkIterator(BlockingQueue<Future<Record[]>> chunks, long maxSeedByteSize) {
+      this.chunks = chunks;
+      this.maxSeedByteSize = maxSeedByteSize;
+    }
+
+    public boolean hasNext() {
+      while (index == chunk.length) {
+        if (finished) {
+          return false;
+        }
+        Record[] nextChunk = takeChunk();
+        if (nextChunk == null) {
+          finished = true;
+          return false;
+        }
+        chunk = nextChunk;
+        index = 0;
       }
+      return true;
+    }
 
-      int seedByteSize = records.size() * Record.RATING_BYTE_SIZE;
-      if (records.size() * Record.RATING_BYTE_SIZE >= Disk.DISK_BYTE_SIZE) {
-        throw new IllegalArgumentException(String.format("Seed data size(%d Bytes) exceeds disk size(%d Bytes)", seedByteSize, Disk.DISK_BYTE_SIZE));
+    public Record next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
-      for(Record r : records) {
-        storageManager.insertRecord(r);
+      Record record = chunk[index++];
+      recordCount++;
+
+      long seedByteSize = recordCount * Record.RECORD_BYTE_SIZE;
+      if (seedByteSize >= maxSeedByteSize) {
+        throw new IllegalArgumentException(String.format("Seed data size(%d Bytes) exceeds disk size(%d Bytes)", seedByteSize, maxSeedByteSize));
       }
-      
-      System.out.println("#####\tSuccessfully seeded data. Head:\t#####");
-      for(Integer i = 0; i < Math.min(10, records.size()); i++) {
-        System.out.println(records.get(i));
+      if (head.size() < HEAD_RECORD_COUNT) {
+        head.add(record);
       }
-      System.out.println();
+      return record;
+    }
 
-    } catch (IOException e) {
-        System.err.println(String.format("Could not read file at filePath %s", filePath));
-        e.printStackTrace(); // Handle the exception according to your needs
+    private Record[] takeChunk() {
+      try {
+        return chunks.take().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for seed data", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      }
     }
   }
 }
@@ -1,27 +1,242 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
+/**
+ * Disk is either an in-memory byte[] of 500MB, or a file that is memory-mapped segment by segment.
+ * A file-backed disk keeps its blocks across restarts and is not limited to DISK_BYTE_SIZE.
+ */
 public class Disk {
   public static int DISK_BYTE_SIZE = 500 * (int) Math.pow(2, 20);
+  public static final int SEGMENT_BYTE_SIZE = 64 * (int) Math.pow(2, 20);
+  /**
+   * File header contains a magic number, the block size the file was formatted with and the last checkpoint
+   */
+  private static final int FILE_HEADER_BYTE_SIZE = 64;
+  private static final int FILE_MAGIC = 0x44424D53; // "DBMS"
+  private static final int CHECKPOINT_FLAG_OFFSET = 8;
+  private static final int CHECKPOINT_LSN_OFFSET = 16;
+  private static final int CHECKPOINT_BLOCK_COUNT_OFFSET = 24;
+  private static final int CHECKPOINT_LAST_BLOCK_RECORDS_OFFSET = 28;
+  private static final int CHECKPOINT_COMPACTED_FROM_OFFSET = 32;
+
   private int blockSizeInBytes;
   private ByteBuffer bytes;
 
+  // Only used by a file-backed disk
+  private FileChannel channel;
+  private ArrayList<MappedByteBuffer> segments;
+  private int blocksPerSegment;
+
+  // Last checkpoint, see writeCheckpoint
+  private boolean hasCheckpoint = false;
+  private long checkpointLsn = 0;
+  private int checkpointBlockCount = 0;
+  private int checkpointLastBlockRecordCount = 0;
+  private int checkpointCompactedFrom = 0;
+
   public Disk(int blockSizeInBytes) {
     this.blockSizeInBytes = blockSizeInBytes;
     this.bytes = ByteBuffer.allocate(DISK_BYTE_SIZE); // 500 MB;
   }
 
+  /**
+   * Opens the disk file at filePath, creating it if it does not exist yet
+   */
+  public Disk(int blockSizeInBytes, String filePath) {
+    this.blockSizeInBytes = blockSizeInBytes;
+    this.blocksPerSegment = SEGMENT_BYTE_SIZE / blockSizeInBytes;
+    this.segments = new ArrayList<MappedByteBuffer>();
+    try {
+      this.channel = new RandomAccessFile(filePath, "rw").getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTE_SIZE);
+      if (channel.size() == 0) {
+        header.putInt(FILE_MAGIC).putInt(blockSizeInBytes).rewind();
+        channel.write(header, 0);
+      } else {
+        channel.read(header, 0);
+        if (header.getInt(0) != FILE_MAGIC) {
+          throw new IllegalArgumentException(String.format("%s is not a disk file", filePath));
+        }
+        if (header.getInt(4) != blockSizeInBytes) {
+          throw new IllegalArgumentException(String.format("%s was formatted with block size %d but %d was requested", filePath, header.getInt(4), blockSizeInBytes));
+        }
+        hasCheckpoint = header.getInt(CHECKPOINT_FLAG_OFFSET) == 1;
+        checkpointLsn = header.getLong(CHECKPOINT_LSN_OFFSET);
+        checkpointBlockCount = header.getInt(CHECKPOINT_BLOCK_COUNT_OFFSET);
+        checkpointLastBlockRecordCount = header.getInt(CHECKPOINT_LAST_BLOCK_RECORDS_OFFSET);
+        checkpointCompactedFrom = header.getInt(CHECKPOINT_COMPACTED_FROM_OFFSET);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(String.format("Could not open disk file at filePath %s", filePath), e);
+    }
+  }
+
+  /**
+   * Returns a view over the block's slice of the disk. Nothing is copied; changes to the Block change the disk
+   */
   public Block getBlock(int blockNumber) {
-    byte[] blockBytes = new byte[blockSizeInBytes];
-    bytes.position(getPositionFromBlockNumber(blockNumber)).get(blockBytes);
-    return new Block(blockBytes);
+    ByteBuffer view;
+    if (isPersistent()) {
+      view = getSegment(blockNumber).slice(getPositionInSegment(blockNumber), blockSizeInBytes);
+    } else {
+      view = bytes.slice(getPositionFromBlockNumber(blockNumber), blockSizeInBytes);
+    }
+    return new Block(view, this, blockNumber);
   }
 
+  /**
+   * Copies block onto the slice of disk at blockNumber. A view of that same slice is already on disk so nothing is copied
+   */
   public void writeBlock(int blockNumber, Block block) {
-    bytes.position(getPositionFromBlockNumber(blockNumber));
-    bytes.put(block.marshal());
+    if (block.isViewOf(this, blockNumber)) {
+      return;
+    }
+    ByteBuffer blockBytes = block.marshal();
+    if (isPersistent()) {
+      getSegment(blockNumber).put(getPositionInSegment(blockNumber), blockBytes, 0, blockSizeInBytes);
+    } else {
+      bytes.put(getPositionFromBlockNumber(blockNumber), blockBytes, 0, blockSizeInBytes);
+    }
+  }
+
+  public boolean isPersistent() {
+    return channel != null;
+  }
+
+  public int getBlockSize() {
+    return blockSizeInBytes;
+  }
+
+  /**
+   * Number of blocks that can be read without growing the disk
+   */
+  public int getBlockCapacity() {
+    if (!isPersistent()) {
+      return DISK_BYTE_SIZE / blockSizeInBytes;
+    }
+    try {
+      return (int) ((channel.size() - FILE_HEADER_BYTE_SIZE) / blockSizeInBytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Forces changes to mapped segments out to the file. No-op for an in-memory disk
+   */
+  public void flush() {
+    if (isPersistent()) {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+    }
+  }
+
+  /**
+   * Forces the blocks out to the file, then records in the file header that its first blockCount blocks, the last of them
+   * holding lastBlockRecordCount records, hold the effects of every operation logged up to lsn.
+   * Anything past them was written after the checkpoint and is redone from the log instead
+   */
+  public void writeCheckpoint(long lsn, int blockCount, int lastBlockRecordCount) {
+    writeCheckpoint(lsn, blockCount, lastBlockRecordCount, 0);
+  }
+
+  /**
+   * Like writeCheckpoint, but the first blockCount blocks are held by the blocks from compactedFrom on, a compacted copy
+   * that still has to be copied over them. 0 if they are in place
+   */
+  public void writeCheckpoint(long lsn, int blockCount, int lastBlockRecordCount, int compactedFrom) {
+    flush();
+    if (isPersistent()) {
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTE_SIZE);
+      header.putInt(0, FILE_MAGIC)
+          .putInt(4, blockSizeInBytes)
+          .putInt(CHECKPOINT_FLAG_OFFSET, 1)
+          .putLong(CHECKPOINT_LSN_OFFSET, lsn)
+          .putInt(CHECKPOINT_BLOCK_COUNT_OFFSET, blockCount)
+          .putInt(CHECKPOINT_LAST_BLOCK_RECORDS_OFFSET, lastBlockRecordCount)
+          .putInt(CHECKPOINT_COMPACTED_FROM_OFFSET, compactedFrom);
+      try {
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not write the checkpoint to the disk file", e);
+      }
+    }
+    hasCheckpoint = true;
+    checkpointLsn = lsn;
+    checkpointBlockCount = blockCount;
+    checkpointLastBlockRecordCount = lastBlockRecordCount;
+    checkpointCompactedFrom = compactedFrom;
+  }
+
+  /**
+   * Whether a checkpoint was ever written, which a disk file formatted before checkpoints existed does not have
+   */
+  public boolean hasCheckpoint() {
+    return hasCheckpoint;
+  }
+
+  /**
+   * Log sequence number of the last operation the checkpoint holds, 0 without a checkpoint
+   */
+  public long getCheckpointLsn() {
+    return checkpointLsn;
+  }
+
+  public int getCheckpointBlockCount() {
+    return checkpointBlockCount;
+  }
+
+  public int getCheckpointLastBlockRecordCount() {
+    return checkpointLastBlockRecordCount;
+  }
+
+  public int getCheckpointCompactedFrom() {
+    return checkpointCompactedFrom;
+  }
+
+  public void close() {
+    if (!isPersistent()) {
+      return;
+    }
+    flush();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   private int getPositionFromBlockNumber(int blockNumber) {
     return (blockNumber-1) * blockSizeInBytes;
   }
-}
\ No newline at end of file
+
+  private int getPositionInSegment(int blockNumber) {
+    return ((blockNumber-1) % blocksPerSegment) * blockSizeInBytes;
+  }
+
+  /**
+   * Returns the mapped segment holding blockNumber, mapping (and growing the file) as required
+   */
+  private MappedByteBuffer getSegment(int blockNumber) {
+    int segmentIndex = (blockNumber-1) / blocksPerSegment;
+    while (segments.size() <= segmentIndex) {
+      long segmentByteSize = (long) blocksPerSegment * blockSizeInBytes;
+      long segmentPosition = FILE_HEADER_BYTE_SIZE + segments.size() * segmentByteSize;
+      try {
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segmentPosition, segmentByteSize));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return segments.get(segmentIndex);
+  }
+}
@@ -0,0 +1,1052 @@
+import java.util.ArrayList;
+
+/**
+ * B+ tree on numVotes whose nodes are pages of its own Disk, read and written through a BufferPool.
+ * Only the pool's frames are held in memory however large the index grows, and every node access is a pin counted by the pool.
+ * On a file-backed disk the index survives restarts: page 1 holds the root, the height and whether every change was flushed.
+ *
+ * Leaf keys are unique like in BPlusTree. A key held by one record stores the packed address in its leaf entry, a key held
+ * by several stores the negated page number of a chain of overflow pages holding all of their addresses.
+ * A covering index stores the averageRating of every record right after its address, in leaf entries and overflow pages.
+ * Deletes free a node once it is empty instead of merging underfull nodes.
+ */
+public class DiskBPlusTree implements Index {
+    private static final int META_PAGE = 1;
+    private static final int META_MAGIC = 0x42505449; // "BPTI"
+    private static final int MIN_FRAME_COUNT = 8;
+
+    // Meta page layout
+    private static final int META_MAGIC_OFFSET = 0;
+    private static final int META_ROOT_OFFSET = 4;
+    private static final int META_HEIGHT_OFFSET = 8;
+    private static final int META_NODE_COUNT_OFFSET = 12;
+    private static final int META_PAGE_COUNT_OFFSET = 16;
+    private static final int META_FREE_LIST_OFFSET = 20;
+    private static final int META_CLEAN_OFFSET = 24;
+    private static final int META_COVERING_OFFSET = 28;
+
+    // Page types
+    private static final int TYPE_LEAF = 1;
+    private static final int TYPE_PARENT = 2;
+    private static final int TYPE_OVERFLOW = 3;
+    private static final int TYPE_FREE = 4;
+
+    // Header shared by every page
+    private static final int TYPE_OFFSET = 0;
+    private static final int COUNT_OFFSET = 4;
+    private static final int NEXT_OFFSET = 8; // Next leaf, next overflow page or next free page
+    private static final int PREV_OFFSET = 12; // Previous leaf
+    private static final int HEADER_BYTE_SIZE = 16;
+
+    // Leaf entries are a key followed by a packed address or a negated overflow page number, then the rating if covering
+    private static final int LEAF_ENTRY_BYTE_SIZE = 12;
+    private static final int RATING_BYTE_SIZE = 4;
+    // Parent pages hold child 0, then pairs of key i and child i + 1
+    private static final int PARENT_ENTRY_BYTE_SIZE = 8;
+    // The first overflow page of a chain also holds the number of addresses in the whole chain and its last page
+    private static final int OVERFLOW_TOTAL_OFFSET = 12;
+    private static final int OVERFLOW_LAST_OFFSET = 16;
+    private static final int OVERFLOW_HEADER_BYTE_SIZE = 20;
+
+    private final Disk disk;
+    private final BufferPool bufferPool;
+    private final boolean covering;
+    private final int leafEntryByteSize;
+    // Overflow pages hold addresses, each followed by its rating if covering
+    private final int overflowEntryByteSize;
+    final int maxLeafKeys;
+    final int maxParentKeys;
+    final int overflowPageCapacity;
+
+    private int rootPage;
+    private int height;
+    private int nodeCount;
+    private int pageCount;
+    private int freeListHead;
+    private boolean clean;
+    private boolean restored;
+    private int deletedCount;
+    // Bumped on every change, so that open cursors know the leaf they were about to read may be gone
+    private int modCount;
+
+    /**
+     * Opens the index kept on disk, formatting it if the disk does not hold one yet
+     */
+    public DiskBPlusTree(Disk disk, StorageConfiguration config) {
+        if (disk.getBlockSize() != config.getPageSize()) {
+            throw new IllegalArgumentException(String.format("Index disk block size(%d Bytes) does not match the configured page size(%d Bytes)", disk.getBlockSize(), config.getPageSize()));
+        }
+        int frameCount = config.getIndexBufferPoolSize();
+        if (frameCount < MIN_FRAME_COUNT) {
+            throw new IllegalArgumentException(String.format("Disk B+ tree needs at least %d buffer pool frames", MIN_FRAME_COUNT));
+        }
+        this.disk = disk;
+        this.bufferPool = new BufferPool(disk, frameCount, EvictionPolicy.create(config.getEvictionPolicy(), frameCount));
+
+        covering = config.isCoveringIndex();
+        leafEntryByteSize = LEAF_ENTRY_BYTE_SIZE + (covering ? RATING_BYTE_SIZE : 0);
+        overflowEntryByteSize = Long.BYTES + (covering ? RATING_BYTE_SIZE : 0);
+
+        int pageSize = disk.getBlockSize();
+        maxLeafKeys = (pageSize - HEADER_BYTE_SIZE) / leafEntryByteSize;
+        maxParentKeys = (pageSize - HEADER_BYTE_SIZE - 4) / PARENT_ENTRY_BYTE_SIZE;
+        overflowPageCapacity = (pageSize - OVERFLOW_HEADER_BYTE_SIZE) / overflowEntryByteSize;
+
+        if (disk.getBlockCapacity() >= META_PAGE && readMeta()) {
+            restored = clean;
+        } else {
+            clean = false;
+            clear();
+        }
+        System.out.println("Disk B+ tree opened with maxLeafKeys = " + maxLeafKeys + ", maxParentKeys = " + maxParentKeys + ", " + (restored ? "restored from disk" : "not restored"));
+    }
+
+    public void insert(int key, long address, float averageRating) {
+        markDirty();
+        int[] pathPages = new int[height];
+        int[] pathChildIndexes = new int[height];
+        int leafPage = searchLeaf(key, pathPages, pathChildIndexes);
+
+        Block leaf = bufferPool.pin(leafPage);
+        int count = leaf.getInt(COUNT_OFFSET);
+        int index = leafLowerBound(leaf, key);
+
+        // A key that is already in the tree only gains another address in its posting list
+        if (index < count && leafKey(leaf, index) == key) {
+            addToPosting(leaf, index, address, averageRating);
+            bufferPool.unpin(leafPage, true);
+            return;
+        }
+
+        if (count < maxLeafKeys) {
+            insertLeafEntry(leaf, index, key, address, averageRating);
+            bufferPool.unpin(leafPage, true);
+            return;
+        }
+        splitLeaf(leafPage, leaf, index, key, address, averageRating, pathPages, pathChildIndexes);
+    }
+
+    public boolean delete(int key, Address address) {
+        return delete(key, address.pack(), false);
+    }
+
+    public void deleteKey(int key) {
+        delete(key, 0, true);
+    }
+
+    public ArrayList<Address> getRecordsWithKey(int key) {
+        ArrayList<Address> result = new ArrayList<>();
+        int leafPage = searchLeaf(key, null, null);
+        Block leaf = bufferPool.pin(leafPage);
+        int index = leafLowerBound(leaf, key);
+        if (index < leaf.getInt(COUNT_OFFSET) && leafKey(leaf, index) == key) {
+            forEachRecord(leaf, index, (address, averageRating) -> result.add(Address.unpack(address)));
+        }
+        bufferPool.unpin(leafPage, false);
+        return result;
+    }
+
+    public ArrayList<Address> getRecordsWithKeyInRange(int min, int max) {
+        ArrayList<Address> result = new ArrayList<>();
+        IndexCursor cursor = scanRange(min, max, Long.MAX_VALUE);
+        while (cursor.hasNext())
+            result.add(cursor.next());
+        System.out.println("B+ Tree Search in Range: "+ String.format("%d records found with %d index nodes accessed", result.size(), cursor.getNodeAccessCount()));
+        return result;
+    }
+
+    /**
+     * Returns a cursor that pins one leaf page at a time, and only while copying its entries out.
+     * If the tree changes between two leaves, the cursor searches again for the next key it has not returned yet.
+     */
+    public IndexCursor scanRange(int min, int max, long limit) {
+        return new RangeCursor(min, max, limit, false);
+    }
+
+    /**
+     * Same as scanRange, but follows the previous leaf links from max, returning the largest keys first
+     */
+    public IndexCursor scanRangeDescending(int min, int max, long limit) {
+        return new RangeCursor(min, max, limit, true);
+    }
+
+    /**
+     * Index pages keep no record counts of their subtrees, so this reads every leaf in range.
+     * A key with an overflow chain only costs its first overflow page, which holds the total of the chain.
+     */
+    public long countRange(int min, int max) {
+        if (min > max) {
+            return 0;
+        }
+        long total = 0;
+        int leafPage = searchLeaf(min, null, null);
+        while (leafPage != 0) {
+            Block leaf = bufferPool.pin(leafPage);
+            int count = leaf.getInt(COUNT_OFFSET);
+            int index = leafLowerBound(leaf, min);
+            for (; index < count && leafKey(leaf, index) <= max; index++) {
+                long value = leafValue(leaf, index);
+                if (value >= 0) {
+                    total++;
+                } else {
+                    Block first = bufferPool.pin((int) -value);
+                    total += first.getInt(OVERFLOW_TOTAL_OFFSET);
+                    bufferPool.unpin((int) -value, false);
+                }
+            }
+            int nextPage = index < count ? 0 : leaf.getInt(NEXT_OFFSET);
+            bufferPool.unpin(leafPage, false);
+            leafPage = nextPage;
+        }
+        return total;
+    }
+
+    public long rank(int key) {
+        return key == Integer.MIN_VALUE ? 0 : countRange(Integer.MIN_VALUE, key - 1);
+    }
+
+    public int selectKey(long rank) {
+        if (rank >= 0) {
+            IndexCursor cursor = scanRange(Integer.MIN_VALUE, Integer.MAX_VALUE, rank + 1);
+            long position = 0;
+            while (cursor.hasNext()) {
+                cursor.nextPackedAddress();
+                if (position++ == rank) {
+                    return cursor.getKey();
+                }
+            }
+        }
+        throw new IndexOutOfBoundsException(String.format("Rank %d out of bounds for %d records", rank, countRange(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+    }
+
+    private class RangeCursor extends IndexCursor {
+        private final int min;
+        private final int max;
+        private final int step;
+        // Next key to fetch: the smallest key not fetched yet, or the largest one when descending
+        private long resume;
+        // Leaf page to read next, or 0 to search for the leaf of resume
+        private int nextPage;
+        private int expectedModCount;
+
+        RangeCursor(int min, int max, long limit, boolean descending) {
+            super(limit);
+            this.min = min;
+            this.max = max;
+            this.step = descending ? -1 : 1;
+            this.resume = descending ? max : min;
+        }
+
+        protected boolean fetchLeaf() {
+            if (resume < min || resume > max) {
+                return false;
+            }
+            long nodeAccessBefore = getNodeAccessCount();
+            int leafPage = nextPage != 0 && expectedModCount == modCount ? nextPage : searchLeaf((int) resume, null, null);
+            expectedModCount = modCount;
+
+            Block leaf = bufferPool.pin(leafPage);
+            int count = leaf.getInt(COUNT_OFFSET);
+            long last = resume - step;
+            boolean end = false;
+            int index = step > 0 ? leafLowerBound(leaf, (int) resume) : leafUpperBound(leaf, (int) resume) - 1;
+            for (; index >= 0 && index < count; index += step) {
+                int key = leafKey(leaf, index);
+                if (key < min || key > max) {
+                    end = true;
+                    break;
+                }
+                forEachRecord(leaf, index, (address, averageRating) -> add(key, address, averageRating));
+                last = key;
+            }
+            nextPage = leaf.getInt(step > 0 ? NEXT_OFFSET : PREV_OFFSET);
+            bufferPool.unpin(leafPage, false);
+            countNodeAccesses(getNodeAccessCount() - nodeAccessBefore);
+
+            resume = last + step;
+            return !end && nextPage != 0 && resume >= min && resume <= max;
+        }
+    }
+
+    /**
+     * Builds the tree bottom-up, writing leaves, their overflow pages and then each level of parent pages in order.
+     * Pairs sharing a key become one leaf entry. Leaves are filled to fillFactor of maxLeafKeys distinct keys.
+     */
+    public void bulkLoad(int[] keys, long[] addresses, float[] averageRatings, float fillFactor) {
+        if (!isEmpty()) {
+            throw new IllegalArgumentException("Bulk load requires an empty B+ tree");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        markDirty();
+        freePage(rootPage);
+
+        int distinctKeyCount = 1;
+        for (int i = 1; i < keys.length; i++)
+            if (keys[i] != keys[i - 1])
+                distinctKeyCount++;
+
+        // Build the leaf level
+        int minLeafKeys = (maxLeafKeys + 1) / 2;
+        int keysPerLeaf = Math.max(minLeafKeys, Math.min(maxLeafKeys, Math.round(maxLeafKeys * fillFactor)));
+        int[] leafSizes = BPlusTree.distribute(distinctKeyCount, keysPerLeaf, minLeafKeys);
+        int[] levelPages = new int[leafSizes.length];
+        int[] levelKeys = new int[leafSizes.length];
+        int keyIndex = 0;
+        int page = allocatePage();
+        for (int l = 0; l < leafSizes.length; l++) {
+            Block leaf = pinNewPage(page, TYPE_LEAF, true);
+            levelPages[l] = page;
+            levelKeys[l] = keys[keyIndex];
+            for (int i = 0; i < leafSizes[l]; i++) {
+                int runEnd = keyIndex + 1;
+                while (runEnd < keys.length && keys[runEnd] == keys[keyIndex])
+                    runEnd++;
+                long value = runEnd - keyIndex == 1 ? addresses[keyIndex] : -(long) writeChain(addresses, averageRatings, keyIndex, runEnd - keyIndex);
+                leaf.putInt(leafKeyOffset(i), keys[keyIndex]);
+                leaf.putLong(leafKeyOffset(i) + 4, value);
+                if (covering) {
+                    putRating(leaf, leafKeyOffset(i) + LEAF_ENTRY_BYTE_SIZE, averageRatings[keyIndex]);
+                }
+                keyIndex = runEnd;
+            }
+            leaf.putInt(COUNT_OFFSET, leafSizes[l]);
+            leaf.putInt(PREV_OFFSET, l == 0 ? 0 : levelPages[l - 1]);
+            int nextPage = l + 1 < leafSizes.length ? allocatePage() : 0;
+            leaf.putInt(NEXT_OFFSET, nextPage);
+            bufferPool.unpin(levelPages[l], true);
+            page = nextPage;
+        }
+        nodeCount = levelPages.length;
+        height = 1;
+
+        // Build parent levels until a single root is left
+        while (levelPages.length > 1) {
+            int[] parentSizes = BPlusTree.distribute(levelPages.length, maxParentKeys + 1, maxParentKeys / 2 + 1);
+            int[] parentPages = new int[parentSizes.length];
+            int[] parentKeys = new int[parentSizes.length];
+            int childIndex = 0;
+            for (int p = 0; p < parentSizes.length; p++) {
+                parentPages[p] = allocatePage();
+                parentKeys[p] = levelKeys[childIndex];
+                Block parent = pinNewPage(parentPages[p], TYPE_PARENT, true);
+                parent.putInt(childOffset(0), levelPages[childIndex]);
+                for (int j = 1; j < parentSizes[p]; j++) {
+                    parent.putInt(parentKeyOffset(j - 1), levelKeys[childIndex + j]);
+                    parent.putInt(childOffset(j), levelPages[childIndex + j]);
+                }
+                parent.putInt(COUNT_OFFSET, parentSizes[p] - 1);
+                bufferPool.unpin(parentPages[p], true);
+                childIndex += parentSizes[p];
+            }
+            nodeCount += parentPages.length;
+            height++;
+            levelPages = parentPages;
+            levelKeys = parentKeys;
+        }
+        rootPage = levelPages[0];
+    }
+
+    /**
+     * Drops every page and starts over with a single empty leaf as the root
+     */
+    public void clear() {
+        markDirty();
+        pageCount = META_PAGE;
+        freeListHead = 0;
+        rootPage = allocatePage();
+        pinNewPage(rootPage, TYPE_LEAF, false);
+        bufferPool.unpin(rootPage, true);
+        height = 1;
+        nodeCount = 1;
+        deletedCount = 0;
+    }
+
+    public boolean isEmpty() {
+        if (height > 1) {
+            return false;
+        }
+        Block root = bufferPool.pin(rootPage);
+        boolean isEmpty = root.getInt(COUNT_OFFSET) == 0;
+        bufferPool.unpin(rootPage, false);
+        return isEmpty;
+    }
+
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public boolean isCovering() {
+        return covering;
+    }
+
+    /**
+     * Writes every page through to the disk, then marks the index clean in the meta page
+     */
+    public void flush() {
+        if (clean) {
+            return;
+        }
+        bufferPool.flush();
+        disk.flush();
+        clean = true;
+        writeMeta();
+        bufferPool.flush();
+        disk.flush();
+    }
+
+    public void close() {
+        flush();
+        disk.close();
+    }
+
+    public long getNodeAccessCount() {
+        return bufferPool.getHitCount() + bufferPool.getMissCount();
+    }
+
+    public void resetStatistics() {
+        bufferPool.resetStatistics();
+    }
+
+    public int getDeletedNodeCount() {
+        return deletedCount;
+    }
+
+    public void bPlusTreeStats() {
+        ArrayList<Integer> rootKeys = new ArrayList<>();
+        ArrayList<Integer> firstKeys = new ArrayList<>();
+        Block root = bufferPool.pin(rootPage);
+        int firstPage = rootPage;
+        if (root.getInt(TYPE_OFFSET) == TYPE_PARENT) {
+            for (int i = 0; i < root.getInt(COUNT_OFFSET); i++)
+                rootKeys.add(root.getInt(parentKeyOffset(i)));
+            firstPage = root.getInt(childOffset(0));
+        } else {
+            for (int i = 0; i < root.getInt(COUNT_OFFSET); i++)
+                rootKeys.add(root.getInt(leafKeyOffset(i)));
+        }
+        bufferPool.unpin(rootPage, false);
+
+        Block first = bufferPool.pin(firstPage);
+        boolean isLeaf = first.getInt(TYPE_OFFSET) == TYPE_LEAF;
+        for (int i = 0; i < first.getInt(COUNT_OFFSET); i++)
+            firstKeys.add(first.getInt(isLeaf ? leafKeyOffset(i) : parentKeyOffset(i)));
+        bufferPool.unpin(firstPage, false);
+
+        System.out.println("B+ Tree Statistics");
+        System.out.println("n: " + maxLeafKeys);
+        System.out.println("height: " + height);
+        System.out.println("number of nodes: " + nodeCount);
+        System.out.println("number of pages: " + (pageCount - META_PAGE));
+        System.out.println("Content of root node: " + rootKeys);
+        System.out.println("Content of first child: " + firstKeys);
+    }
+
+    /**
+     * Walks from the root down to the leaf that holds key or where it should be inserted, binary searching each parent page.
+     * When pathPages is given, records the parent page and the index of the child followed on every level.
+     */
+    private int searchLeaf(int key, int[] pathPages, int[] pathChildIndexes) {
+        int page = rootPage;
+        for (int level = 0; level < height - 1; level++) {
+            Block parent = bufferPool.pin(page);
+            int childIndex = parentUpperBound(parent, key);
+            int child = parent.getInt(childOffset(childIndex));
+            bufferPool.unpin(page, false);
+            if (pathPages != null) {
+                pathPages[level] = page;
+                pathChildIndexes[level] = childIndex;
+            }
+            page = child;
+        }
+        return page;
+    }
+
+    /**
+     * Splits a full leaf in two while inserting the new entry, then adds the new leaf to the parent
+     */
+    private void splitLeaf(int leafPage, Block leaf, int index, int key, long address, float averageRating, int[] pathPages, int[] pathChildIndexes) {
+        int count = leaf.getInt(COUNT_OFFSET);
+        int leftCount = (count + 2) / 2;
+        int newPage = allocatePage();
+        Block newLeaf = pinNewPage(newPage, TYPE_LEAF, false);
+
+        // Move the upper entries, leaving room on the side the new entry goes to
+        int moveFrom = index < leftCount ? leftCount - 1 : leftCount;
+        newLeaf.copyBytesFrom(leaf, leafKeyOffset(moveFrom), leafKeyOffset(0), (count - moveFrom) * leafEntryByteSize);
+        newLeaf.putInt(COUNT_OFFSET, count - moveFrom);
+        leaf.putInt(COUNT_OFFSET, moveFrom);
+        if (index < leftCount)
+            insertLeafEntry(leaf, index, key, address, averageRating);
+        else
+            insertLeafEntry(newLeaf, index - leftCount, key, address, averageRating);
+
+        // Link the new leaf in after the original one
+        int nextPage = leaf.getInt(NEXT_OFFSET);
+        newLeaf.putInt(NEXT_OFFSET, nextPage);
+        newLeaf.putInt(PREV_OFFSET, leafPage);
+        leaf.putInt(NEXT_OFFSET, newPage);
+        if (nextPage != 0) {
+            Block next = bufferPool.pin(nextPage);
+            next.putInt(PREV_OFFSET, newPage);
+            bufferPool.unpin(nextPage, true);
+        }
+
+        int separator = leafKey(newLeaf, 0);
+        bufferPool.unpin(leafPage, true);
+        bufferPool.unpin(newPage, true);
+        nodeCount++;
+        insertIntoParent(pathPages, pathChildIndexes, height - 2, separator, newPage);
+    }
+
+    /**
+     * Adds key and the page of the new node after the child followed at level, splitting parents as required
+     */
+    private void insertIntoParent(int[] pathPages, int[] pathChildIndexes, int level, int key, int childPage) {
+        if (level < 0) {
+            // The root was split, so the tree grows by a level
+            int newRootPage = allocatePage();
+            Block newRoot = pinNewPage(newRootPage, TYPE_PARENT, false);
+            newRoot.putInt(childOffset(0), rootPage);
+            newRoot.putInt(parentKeyOffset(0), key);
+            newRoot.putInt(childOffset(1), childPage);
+            newRoot.putInt(COUNT_OFFSET, 1);
+            bufferPool.unpin(newRootPage, true);
+            rootPage = newRootPage;
+            height++;
+            nodeCount++;
+            return;
+        }
+
+        int page = pathPages[level];
+        int index = pathChildIndexes[level];
+        Block parent = bufferPool.pin(page);
+        int count = parent.getInt(COUNT_OFFSET);
+        if (count < maxParentKeys) {
+            insertParentEntry(parent, index, key, childPage);
+            bufferPool.unpin(page, true);
+            return;
+        }
+
+        // Split the parent. Lay out every key and child including the new ones, then write each half back
+        int[] keys = new int[count + 1];
+        int[] children = new int[count + 2];
+        children[0] = parent.getInt(childOffset(0));
+        for (int i = 0, j = 0; i < count + 1; i++) {
+            if (i == index) {
+                keys[i] = key;
+                children[i + 1] = childPage;
+            } else {
+                keys[i] = parent.getInt(parentKeyOffset(j));
+                children[i + 1] = parent.getInt(childOffset(j + 1));
+                j++;
+            }
+        }
+        int leftCount = (count + 1) / 2;
+        int promotedKey = keys[leftCount];
+
+        for (int i = 0; i < leftCount; i++) {
+            parent.putInt(parentKeyOffset(i), keys[i]);
+            parent.putInt(childOffset(i + 1), children[i + 1]);
+        }
+        parent.putInt(COUNT_OFFSET, leftCount);
+
+        int newPage = allocatePage();
+        Block newParent = pinNewPage(newPage, TYPE_PARENT, false);
+        newParent.putInt(childOffset(0), children[leftCount + 1]);
+        for (int i = leftCount + 1, j = 0; i < count + 1; i++, j++) {
+            newParent.putInt(parentKeyOffset(j), keys[i]);
+            newParent.putInt(childOffset(j + 1), children[i + 1]);
+        }
+        newParent.putInt(COUNT_OFFSET, count - leftCount);
+
+        bufferPool.unpin(page, true);
+        bufferPool.unpin(newPage, true);
+        nodeCount++;
+        insertIntoParent(pathPages, pathChildIndexes, level - 1, promotedKey, newPage);
+    }
+
+    /**
+     * Removes a single address, or with wholeKey the key and every address under it. Returns whether anything was removed
+     */
+    private boolean delete(int key, long address, boolean wholeKey) {
+        int[] pathPages = new int[height];
+        int[] pathChildIndexes = new int[height];
+        int leafPage = searchLeaf(key, pathPages, pathChildIndexes);
+
+        Block leaf = bufferPool.pin(leafPage);
+        int count = leaf.getInt(COUNT_OFFSET);
+        int index = leafLowerBound(leaf, key);
+        if (index >= count || leafKey(leaf, index) != key) {
+            bufferPool.unpin(leafPage, false);
+            return false;
+        }
+
+        long value = leafValue(leaf, index);
+        if (!wholeKey && value >= 0 && value != address) {
+            bufferPool.unpin(leafPage, false);
+            return false;
+        }
+        markDirty();
+        if (!wholeKey && value < 0) {
+            // Other records keep the key
+            boolean isRemoved = removeFromPosting(leaf, index, address);
+            bufferPool.unpin(leafPage, isRemoved);
+            return isRemoved;
+        }
+
+        if (value < 0)
+            freeChain((int) -value);
+        leaf.moveBytes(leafKeyOffset(index + 1), leafKeyOffset(index), (count - index - 1) * leafEntryByteSize);
+        leaf.putInt(COUNT_OFFSET, count - 1);
+        if (count > 1 || leafPage == rootPage) {
+            bufferPool.unpin(leafPage, true);
+            return true;
+        }
+
+        // The leaf is empty, unlink it from its neighbours and its parent
+        int previousPage = leaf.getInt(PREV_OFFSET);
+        int nextPage = leaf.getInt(NEXT_OFFSET);
+        bufferPool.unpin(leafPage, true);
+        if (previousPage != 0) {
+            Block previous = bufferPool.pin(previousPage);
+            previous.putInt(NEXT_OFFSET, nextPage);
+            bufferPool.unpin(previousPage, true);
+        }
+        if (nextPage != 0) {
+            Block next = bufferPool.pin(nextPage);
+            next.putInt(PREV_OFFSET, previousPage);
+            bufferPool.unpin(nextPage, true);
+        }
+        freeNode(leafPage);
+        removeFromParent(pathPages, pathChildIndexes, height - 2);
+        return true;
+    }
+
+    /**
+     * Removes the child followed at level from its parent. A parent left without children is removed as well,
+     * and a root left with a single child is replaced by it
+     */
+    private void removeFromParent(int[] pathPages, int[] pathChildIndexes, int level) {
+        int page = pathPages[level];
+        int childIndex = pathChildIndexes[level];
+        Block parent = bufferPool.pin(page);
+        int count = parent.getInt(COUNT_OFFSET);
+
+        if (count == 0) {
+            // The removed child was the only one. A root only keeps a single child while its last key is being removed
+            bufferPool.unpin(page, false);
+            freeNode(page);
+            removeFromParent(pathPages, pathChildIndexes, level - 1);
+            return;
+        }
+
+        if (childIndex == 0) {
+            // Child 1 takes the place of child 0, then the pair of key 0 and child 1 goes
+            parent.putInt(childOffset(0), parent.getInt(childOffset(1)));
+            childIndex = 1;
+        }
+        int pairIndex = childIndex - 1;
+        parent.moveBytes(parentKeyOffset(pairIndex + 1), parentKeyOffset(pairIndex), (count - pairIndex - 1) * PARENT_ENTRY_BYTE_SIZE);
+        parent.putInt(COUNT_OFFSET, count - 1);
+
+        if (page == rootPage && count == 1) {
+            // The root has a single child left, which becomes the root
+            rootPage = parent.getInt(childOffset(0));
+            bufferPool.unpin(page, true);
+            freeNode(page);
+            height--;
+            return;
+        }
+        bufferPool.unpin(page, true);
+    }
+
+    /**
+     * Adds address to the key at index, moving its addresses into an overflow chain if it only had one
+     */
+    private void addToPosting(Block leaf, int index, long address, float averageRating) {
+        long value = leafValue(leaf, index);
+        if (value >= 0) {
+            int page = allocatePage();
+            Block first = pinNewPage(page, TYPE_OVERFLOW, false);
+            putOverflowEntry(first, 0, value, leafRating(leaf, index));
+            putOverflowEntry(first, 1, address, averageRating);
+            first.putInt(COUNT_OFFSET, 2);
+            first.putInt(OVERFLOW_TOTAL_OFFSET, 2);
+            first.putInt(OVERFLOW_LAST_OFFSET, page);
+            bufferPool.unpin(page, true);
+            leaf.putLong(leafKeyOffset(index) + 4, -(long) page);
+            return;
+        }
+
+        int firstPage = (int) -value;
+        Block first = bufferPool.pin(firstPage);
+        int lastPage = first.getInt(OVERFLOW_LAST_OFFSET);
+        Block last = lastPage == firstPage ? first : bufferPool.pin(lastPage);
+        int count = last.getInt(COUNT_OFFSET);
+        if (count < overflowPageCapacity) {
+            putOverflowEntry(last, count, address, averageRating);
+            last.putInt(COUNT_OFFSET, count + 1);
+        } else {
+            int newPage = allocatePage();
+            Block page = pinNewPage(newPage, TYPE_OVERFLOW, false);
+            putOverflowEntry(page, 0, address, averageRating);
+            page.putInt(COUNT_OFFSET, 1);
+            bufferPool.unpin(newPage, true);
+            last.putInt(NEXT_OFFSET, newPage);
+            first.putInt(OVERFLOW_LAST_OFFSET, newPage);
+        }
+        first.putInt(OVERFLOW_TOTAL_OFFSET, first.getInt(OVERFLOW_TOTAL_OFFSET) + 1);
+        if (lastPage != firstPage) {
+            bufferPool.unpin(lastPage, true);
+        }
+        bufferPool.unpin(firstPage, true);
+    }
+
+    /**
+     * Removes address from the overflow chain of the key at index. Pages left empty are freed,
+     * and a chain left with a single address is replaced by that address in the leaf
+     */
+    private boolean removeFromPosting(Block leaf, int index, long address) {
+        int firstPage = (int) -leafValue(leaf, index);
+        Block first = bufferPool.pin(firstPage);
+
+        boolean isFound = false;
+        int previousPage = 0;
+        int page = firstPage;
+        while (page != 0 && !isFound) {
+            Block block = page == firstPage ? first : bufferPool.pin(page);
+            int count = block.getInt(COUNT_OFFSET);
+            int nextPage = block.getInt(NEXT_OFFSET);
+            for (int i = 0; i < count; i++) {
+                if (block.getLong(overflowAddressOffset(i)) == address) {
+                    block.moveBytes(overflowAddressOffset(i + 1), overflowAddressOffset(i), (count - i - 1) * overflowEntryByteSize);
+                    block.putInt(COUNT_OFFSET, count - 1);
+                    isFound = true;
+                    break;
+                }
+            }
+            if (page != firstPage) {
+                bufferPool.unpin(page, isFound);
+                if (isFound && count == 1) {
+                    // Unlink the emptied page
+                    Block previous = previousPage == firstPage ? first : bufferPool.pin(previousPage);
+                    previous.putInt(NEXT_OFFSET, nextPage);
+                    if (previousPage != firstPage) {
+                        bufferPool.unpin(previousPage, true);
+                    }
+                    if (first.getInt(OVERFLOW_LAST_OFFSET) == page) {
+                        first.putInt(OVERFLOW_LAST_OFFSET, previousPage);
+                    }
+                    freePage(page);
+                }
+            }
+            previousPage = page;
+            page = nextPage;
+        }
+        if (!isFound) {
+            bufferPool.unpin(firstPage, false);
+            return false;
+        }
+
+        int total = first.getInt(OVERFLOW_TOTAL_OFFSET) - 1;
+        first.putInt(OVERFLOW_TOTAL_OFFSET, total);
+        if (first.getInt(COUNT_OFFSET) == 0) {
+            // The first page is referenced by the leaf, so the second page moves into it instead of being unlinked
+            int secondPage = first.getInt(NEXT_OFFSET);
+            Block second = bufferPool.pin(secondPage);
+            int secondCount = second.getInt(COUNT_OFFSET);
+            first.copyBytesFrom(second, overflowAddressOffset(0), overflowAddressOffset(0), secondCount * overflowEntryByteSize);
+            first.putInt(COUNT_OFFSET, secondCount);
+            first.putInt(NEXT_OFFSET, second.getInt(NEXT_OFFSET));
+            bufferPool.unpin(secondPage, false);
+            if (first.getInt(OVERFLOW_LAST_OFFSET) == secondPage) {
+                first.putInt(OVERFLOW_LAST_OFFSET, firstPage);
+            }
+            freePage(secondPage);
+        }
+
+        if (total == 1) {
+            // Back to a single record, keep it in the leaf again
+            long remaining = first.getLong(overflowAddressOffset(0));
+            float remainingRating = overflowRating(first, 0);
+            bufferPool.unpin(firstPage, false);
+            freePage(firstPage);
+            leaf.putLong(leafKeyOffset(index) + 4, remaining);
+            if (covering) {
+                putRating(leaf, leafKeyOffset(index) + LEAF_ENTRY_BYTE_SIZE, remainingRating);
+            }
+        } else {
+            bufferPool.unpin(firstPage, true);
+        }
+        return true;
+    }
+
+    /**
+     * Writes count addresses and their ratings starting at from into a new overflow chain and returns its first page
+     */
+    private int writeChain(long[] addresses, float[] averageRatings, int from, int count) {
+        int firstPage = allocatePage();
+        Block first = pinNewPage(firstPage, TYPE_OVERFLOW, true);
+        first.putInt(OVERFLOW_TOTAL_OFFSET, count);
+
+        int page = firstPage;
+        Block block = first;
+        for (int written = 0; written < count; ) {
+            int pageCount = Math.min(overflowPageCapacity, count - written);
+            for (int i = 0; i < pageCount; i++)
+                putOverflowEntry(block, i, addresses[from + written + i], covering ? averageRatings[from + written + i] : Float.NaN);
+            block.putInt(COUNT_OFFSET, pageCount);
+            written += pageCount;
+            if (written < count) {
+                int nextPage = allocatePage();
+                block.putInt(NEXT_OFFSET, nextPage);
+                if (page != firstPage) {
+                    bufferPool.unpin(page, true);
+                }
+                page = nextPage;
+                block = pinNewPage(page, TYPE_OVERFLOW, true);
+            }
+        }
+        if (page != firstPage) {
+            bufferPool.unpin(page, true);
+        }
+        first.putInt(OVERFLOW_LAST_OFFSET, page);
+        bufferPool.unpin(firstPage, true);
+        return firstPage;
+    }
+
+    /**
+     * Passes every packed address held by the leaf entry at index to action with its rating,
+     * reading its overflow chain if it has one
+     */
+    private void forEachRecord(Block leaf, int index, Index.EntryConsumer action) {
+        long value = leafValue(leaf, index);
+        if (value >= 0) {
+            action.accept(value, leafRating(leaf, index));
+            return;
+        }
+        int page = (int) -value;
+        while (page != 0) {
+            Block block = bufferPool.pin(page);
+            int count = block.getInt(COUNT_OFFSET);
+            for (int i = 0; i < count; i++)
+                action.accept(block.getLong(overflowAddressOffset(i)), overflowRating(block, i));
+            int nextPage = block.getInt(NEXT_OFFSET);
+            bufferPool.unpin(page, false);
+            page = nextPage;
+        }
+    }
+
+    private void freeChain(int page) {
+        while (page != 0) {
+            Block block = bufferPool.pin(page);
+            int nextPage = block.getInt(NEXT_OFFSET);
+            bufferPool.unpin(page, false);
+            freePage(page);
+            page = nextPage;
+        }
+    }
+
+    /**
+     * Takes a page off the free list, or grows the index by one page
+     */
+    private int allocatePage() {
+        if (freeListHead == 0) {
+            return ++pageCount;
+        }
+        int page = freeListHead;
+        Block block = bufferPool.pin(page);
+        freeListHead = block.getInt(NEXT_OFFSET);
+        bufferPool.unpin(page, false);
+        return page;
+    }
+
+    private void freePage(int page) {
+        Block block = bufferPool.pinNew(page);
+        block.putInt(TYPE_OFFSET, TYPE_FREE);
+        block.putInt(NEXT_OFFSET, freeListHead);
+        bufferPool.unpin(page, true);
+        freeListHead = page;
+    }
+
+    private void freeNode(int page) {
+        freePage(page);
+        nodeCount--;
+        deletedCount++;
+    }
+
+    /**
+     * Pins a newly allocated page without reading it and writes an empty header of the given type
+     */
+    private Block pinNewPage(int page, int type, boolean sequential) {
+        Block block = bufferPool.pinNew(page, sequential);
+        block.putInt(TYPE_OFFSET, type);
+        block.putInt(COUNT_OFFSET, 0);
+        block.putInt(NEXT_OFFSET, 0);
+        block.putInt(PREV_OFFSET, 0);
+        return block;
+    }
+
+    /**
+     * Called before every change. Clears the clean flag on disk before the first change after a flush,
+     * so a crash before the next flush is noticed on restart
+     */
+    private void markDirty() {
+        modCount++;
+        if (!clean) {
+            return;
+        }
+        clean = false;
+        writeMeta();
+        bufferPool.flush();
+        disk.flush();
+    }
+
+    private boolean readMeta() {
+        Block meta = bufferPool.pin(META_PAGE);
+        boolean isFormatted = meta.getInt(META_MAGIC_OFFSET) == META_MAGIC;
+        if (isFormatted) {
+            rootPage = meta.getInt(META_ROOT_OFFSET);
+            height = meta.getInt(META_HEIGHT_OFFSET);
+            nodeCount = meta.getInt(META_NODE_COUNT_OFFSET);
+            pageCount = meta.getInt(META_PAGE_COUNT_OFFSET);
+            freeListHead = meta.getInt(META_FREE_LIST_OFFSET);
+            clean = meta.getInt(META_CLEAN_OFFSET) == 1;
+            // An index laid out with or without ratings cannot be read the other way, so it is formatted again
+            isFormatted = (meta.getInt(META_COVERING_OFFSET) == 1) == covering;
+        }
+        bufferPool.unpin(META_PAGE, false);
+        return isFormatted;
+    }
+
+    private void writeMeta() {
+        Block meta = bufferPool.pin(META_PAGE);
+        meta.putInt(META_MAGIC_OFFSET, META_MAGIC);
+        meta.putInt(META_ROOT_OFFSET, rootPage);
+        meta.putInt(META_HEIGHT_OFFSET, height);
+        meta.putInt(META_NODE_COUNT_OFFSET, nodeCount);
+        meta.putInt(META_PAGE_COUNT_OFFSET, pageCount);
+        meta.putInt(META_FREE_LIST_OFFSET, freeListHead);
+        meta.putInt(META_CLEAN_OFFSET, clean ? 1 : 0);
+        meta.putInt(META_COVERING_OFFSET, covering ? 1 : 0);
+        bufferPool.unpin(META_PAGE, true);
+    }
+
+    private void insertLeafEntry(Block leaf, int index, int key, long address, float averageRating) {
+        int count = leaf.getInt(COUNT_OFFSET);
+        leaf.moveBytes(leafKeyOffset(index), leafKeyOffset(index + 1), (count - index) * leafEntryByteSize);
+        leaf.putInt(leafKeyOffset(index), key);
+        leaf.putLong(leafKeyOffset(index) + 4, address);
+        if (covering) {
+            putRating(leaf, leafKeyOffset(index) + LEAF_ENTRY_BYTE_SIZE, averageRating);
+        }
+        leaf.putInt(COUNT_OFFSET, count + 1);
+    }
+
+    /**
+     * Inserts key at index and childPage right after it, at index + 1
+     */
+    private void insertParentEntry(Block parent, int index, int key, int childPage) {
+        int count = parent.getInt(COUNT_OFFSET);
+        parent.moveBytes(parentKeyOffset(index), parentKeyOffset(index + 1), (count - index) * PARENT_ENTRY_BYTE_SIZE);
+        parent.putInt(parentKeyOffset(index), key);
+        parent.putInt(childOffset(index + 1), childPage);
+        parent.putInt(COUNT_OFFSET, count + 1);
+    }
+
+    /**
+     * Binary search for the first leaf key greater than or equal to key
+     */
+    private int leafLowerBound(Block leaf, int key) {
+        int low = 0;
+        int high = leaf.getInt(COUNT_OFFSET);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (leaf.getInt(leafKeyOffset(mid)) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Binary search for the first leaf key greater than key
+     */
+    private int leafUpperBound(Block leaf, int key) {
+        int low = 0;
+        int high = leaf.getInt(COUNT_OFFSET);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (leaf.getInt(leafKeyOffset(mid)) <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Binary search for the child to follow: the one after the last parent key less than or equal to key
+     */
+    private static int parentUpperBound(Block parent, int key) {
+        int low = 0;
+        int high = parent.getInt(COUNT_OFFSET);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (parent.getInt(parentKeyOffset(mid)) <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int leafKey(Block leaf, int index) {
+        return leaf.getInt(leafKeyOffset(index));
+    }
+
+    private long leafValue(Block leaf, int index) {
+        return leaf.getLong(leafKeyOffset(index) + 4);
+    }
+
+    /**
+     * Rating of the single record a leaf entry holds inline, NaN unless covering
+     */
+    private float leafRating(Block leaf, int index) {
+        return covering ? Float.intBitsToFloat(leaf.getInt(leafKeyOffset(index) + LEAF_ENTRY_BYTE_SIZE)) : Float.NaN;
+    }
+
+    private int leafKeyOffset(int index) {
+        return HEADER_BYTE_SIZE + index * leafEntryByteSize;
+    }
+
+    private static int childOffset(int index) {
+        return HEADER_BYTE_SIZE + index * PARENT_ENTRY_BYTE_SIZE;
+    }
+
+    private static int parentKeyOffset(int index) {
+        return HEADER_BYTE_SIZE + 4 + index * PARENT_ENTRY_BYTE_SIZE;
+    }
+
+    private int overflowAddressOffset(int index) {
+        return OVERFLOW_HEADER_BYTE_SIZE + index * overflowEntryByteSize;
+    }
+
+    private float overflowRating(Block block, int index) {
+        return covering ? Float.intBitsToFloat(block.getInt(overflowAddressOffset(index) + Long.BYTES)) : Float.NaN;
+    }
+
+    private void putOverflowEntry(Block block, int index, long address, float averageRating) {
+        block.putLong(overflowAddressOffset(index), address);
+        if (covering) {
+            putRating(block, overflowAddressOffset(index) + Long.BYTES, averageRating);
+        }
+    }
+
+    private static void putRating(Block block, int position, float averageRating) {
+        block.putInt(position, Float.floatToRawIntBits(averageRating));
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which frame of the BufferPool to evict when every frame is in use.
+ * Scans load their blocks as sequential accesses, which each policy keeps from displacing the hot set.
+ */
+public interface EvictionPolicy {
+
+  enum TYPE {
+    LRU,
+    CLOCK,
+    TWO_QUEUE
+  }
+
+  static EvictionPolicy create(TYPE type, int frameCount) {
+    switch (type) {
+      case LRU:
+        return new LruEvictionPolicy(frameCount);
+      case CLOCK:
+        return new ClockEvictionPolicy(frameCount);
+      case TWO_QUEUE:
+        return new TwoQueueEvictionPolicy(frameCount);
+      default:
+        throw new IllegalArgumentException("Unsupported eviction policy: " + type);
+    }
+  }
+
+  // Called when blockNumber is read into an empty or just evicted frame
+  void recordLoad(int frameId, int blockNumber, boolean sequential);
+
+  // Called when a block that is already in frameId is pinned again
+  void recordAccess(int frameId, boolean sequential);
+
+  // Chooses a frame that is not pinned and stops tracking it. Returns -1 if every frame is pinned
+  int chooseVictim(IntPredicate isPinned);
+}
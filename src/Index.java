@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+
+/**
+ * Secondary index from numVotes to the addresses of the records holding it.
+ * BPlusTree keeps its nodes on the heap and is rebuilt on every start, DiskBPlusTree keeps them in pages of an index file.
+ * BPlusTree can be read and changed from several threads at once, DiskBPlusTree is meant for a single thread.
+ */
+public interface Index {
+
+  // Receives a packed record address together with the averageRating kept for it, NaN if the index is not covering
+  interface EntryConsumer {
+    void accept(long address, float averageRating);
+  }
+
+  // Adds a record address, packed with Address.pack, under key. averageRating is only kept by a covering index
+  void insert(int key, long address, float averageRating);
+
+  // Removes a single record address from key. Returns whether it was indexed
+  boolean delete(int key, Address address);
+
+  // Removes key together with every record address under it
+  void deleteKey(int key);
+
+  ArrayList<Address> getRecordsWithKey(int key);
+
+  ArrayList<Address> getRecordsWithKeyInRange(int min, int max);
+
+  // Walks the addresses of at most limit records with keys in [min, max] in key order, reading one leaf at a time
+  IndexCursor scanRange(int min, int max, long limit);
+
+  // Same as scanRange, but from max down to min, largest keys first
+  IndexCursor scanRangeDescending(int min, int max, long limit);
+
+  // Number of records with keys in [min, max], counting every record of a key
+  long countRange(int min, int max);
+
+  // Number of records with keys smaller than key
+  long rank(int key);
+
+  // Key of the record at position rank in key order, counting from 0
+  int selectKey(long rank);
+
+  // Builds the index from key-address pairs sorted by key, with the averageRating of each record. The index must be empty
+  void bulkLoad(int[] keys, long[] addresses, float[] averageRatings, float fillFactor);
+
+  // Whether the leaves keep the averageRating of every record, which cursors then return with each address
+  boolean isCovering();
+
+  void clear();
+
+  boolean isEmpty();
+
+  // Whether the index was reopened from a clean shutdown, so it already covers every record on disk and needs no rebuild
+  boolean isRestored();
+
+  // Makes every change so far durable and marks the index clean
+  void flush();
+
+  void close();
+
+  // Number of index nodes read since the last resetStatistics
+  long getNodeAccessCount();
+
+  void resetStatistics();
+
+  // Number of nodes freed by deletes
+  int getDeletedNodeCount();
+
+  void bPlusTreeStats();
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily walks the record addresses under a range of keys of an Index, in ascending or descending key order.
+ * Entries are fetched one leaf at a time, so only the current leaf is held in memory and a caller that stops early
+ * never reads the leaves after it. Unlike getRecordsWithKeyInRange nothing is printed.
+ * The entries of a leaf are copied out when the cursor reaches it, so changes to that leaf made afterwards are not seen.
+ */
+public abstract class IndexCursor implements Iterator<Address> {
+    private int[] keys = new int[16];
+    private long[] addresses = new long[16];
+    private float[] ratings = new float[16];
+    private int count;
+    private int position;
+    private long remaining;
+    private boolean finished;
+    private int key;
+    private float rating;
+    private long nodeAccessCount;
+
+    /**
+     * @param limit Maximum number of addresses to return
+     */
+    protected IndexCursor(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        this.remaining = limit;
+    }
+
+    /**
+     * Adds the entries in range of the next leaf with add.
+     * Returns false once no leaf after it can hold keys in range
+     */
+    protected abstract boolean fetchLeaf();
+
+    /**
+     * Buffers one address of the leaf being fetched, with the averageRating a covering index keeps for it
+     */
+    protected void add(int key, long packedAddress, float averageRating) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            addresses = Arrays.copyOf(addresses, count * 2);
+            ratings = Arrays.copyOf(ratings, count * 2);
+        }
+        keys[count] = key;
+        ratings[count] = averageRating;
+        addresses[count++] = packedAddress;
+    }
+
+    /**
+     * Drops the addresses buffered by the current fetch, e.g. because the leaf changed while it was read
+     */
+    protected void clearLeaf() {
+        count = 0;
+    }
+
+    protected void countNodeAccesses(long accesses) {
+        nodeAccessCount += accesses;
+    }
+
+    public boolean hasNext() {
+        if (remaining == 0) {
+            return false;
+        }
+        while (position == count) {
+            if (finished) {
+                return false;
+            }
+            count = 0;
+            position = 0;
+            finished = !fetchLeaf();
+        }
+        return true;
+    }
+
+    public Address next() {
+        return Address.unpack(nextPackedAddress());
+    }
+
+    /**
+     * Same as next, but returns the address packed with Address.pack instead of allocating an Address
+     */
+    public long nextPackedAddress() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        remaining--;
+        key = keys[position];
+        rating = ratings[position];
+        return addresses[position++];
+    }
+
+    /**
+     * Key of the address returned last
+     */
+    public int getKey() {
+        return key;
+    }
+
+    /**
+     * averageRating of the record at the address returned last, read from the index without touching the record.
+     * NaN unless the index is covering
+     */
+    public float getAverageRating() {
+        return rating;
+    }
+
+    /**
+     * Number of index nodes read by this cursor so far
+     */
+    public long getNodeAccessCount() {
+        return nodeAccessCount;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Growable (numVotes, address, averageRating) entries for the B+ tree, gathered in address order and added to it at once
+ * in key order: bulk loaded bottom-up into an empty tree, and inserted one by one in key order into any other.
+ */
+public class IndexEntries {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private long[] addresses = new long[INITIAL_CAPACITY];
+    private float[] averageRatings = new float[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Adds an entry
+     */
+    public void add(int key, long address, float averageRating) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            addresses = Arrays.copyOf(addresses, size * 2);
+            averageRatings = Arrays.copyOf(averageRatings, size * 2);
+        }
+        keys[size] = key;
+        addresses[size] = address;
+        averageRatings[size] = averageRating;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds every entry to the tree, then forgets them
+     */
+    public void addTo(Index bPlusTree, float bulkLoadFillFactor) {
+        // Sort by key. Entries are in address order, so the position breaks ties to keep duplicates in address order
+        int count = size;
+        long[] sortedPairs = new long[count];
+        for (int i = 0; i < count; i++) {
+            sortedPairs[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(sortedPairs);
+        int[] sortedKeys = new int[count];
+        long[] sortedAddresses = new long[count];
+        float[] sortedAverageRatings = new float[count];
+        for (int i = 0; i < count; i++) {
+            int position = (int) sortedPairs[i];
+            sortedKeys[i] = keys[position];
+            sortedAddresses[i] = addresses[position];
+            sortedAverageRatings[i] = averageRatings[position];
+        }
+
+        size = 0;
+        if (count == 0) {
+            return;
+        }
+        if (bPlusTree.isEmpty()) {
+            bPlusTree.bulkLoad(sortedKeys, sortedAddresses, sortedAverageRatings, bulkLoadFillFactor);
+        } else {
+            for (int i = 0; i < count; i++) {
+                bPlusTree.insert(sortedKeys[i], sortedAddresses[i], sortedAverageRatings[i]);
+            }
+        }
+    }
+}
@@ -1,30 +1,121 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * Leaf keys are unique. A key held by a single record keeps that record's packed address inline in records,
+ * a key held by several records keeps all of their addresses in a PostingList instead.
+ * A leaf of a covering index also keeps the averageRating of every record next to its address.
+ * Every leaf has a version lock: writers make the version odd while they change the leaf,
+ * readers read it without locking and check afterwards that the version did not move.
+ */
 public class LeafNode extends Node {
+    private static final VarHandle VERSION;
 
-    private ArrayList<Address> records;
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(LeafNode.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Record addresses packed with Address.pack, parallel to the keys. Only used where postings is null
+    private long[] records;
+    // averageRating of the record in records, parallel to the keys. Only kept by a covering index
+    private float[] ratings;
+    // Posting list of each key held by more than one record, parallel to the keys
+    private PostingList[] postings;
     private LeafNode next;
-    
+    private LeafNode previous;
+    private volatile long version;
+
     public LeafNode() {
-        super();
-        records = new ArrayList<Address>();
+        this(4);
+    }
+
+    /**
+     * @param capacity Number of keys to make room for up front
+     */
+    public LeafNode(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity Number of keys to make room for up front
+     * @param covering Whether to keep the averageRating of every record
+     */
+    public LeafNode(int capacity, boolean covering) {
+        super(capacity);
+        records = new long[Math.max(1, capacity)];
+        postings = new PostingList[Math.max(1, capacity)];
+        if (covering)
+            ratings = new float[records.length];
         setLeaf(true);
         setNext(null);
     }
 
     // Getters and setters
+
     /**
-     * Returns the records field
+     * Returns the index of key, or -1 if the node does not hold it
      */
-    public ArrayList<Address> returnRecords(){
-        return this.records;
+    public int indexOf(int key) {
+        int index = lowerBound(key);
+        return index < returnKeyCount() && returnKey(index) == key ? index : -1;
     }
 
     /**
-     * Returns the record at the specified index
+     * Returns the first record of the key at the specified index
      */
     public Address returnRecord(int ind){
-        return this.records.get(ind);
+        return Address.unpack(returnPackedRecord(ind));
+    }
+
+    /**
+     * Returns the packed address of the first record of the key at the specified index
+     */
+    public long returnPackedRecord(int ind){
+        if (ind >= returnKeyCount())
+            throw new IndexOutOfBoundsException(String.format("Record index %d out of bounds for %d records", ind, returnKeyCount()));
+        return postings[ind] == null ? records[ind] : postings[ind].first();
+    }
+
+    /**
+     * Returns the averageRating kept for the first record of the key at the specified index, NaN if the leaf keeps none
+     */
+    public float returnRating(int ind) {
+        if (postings[ind] != null)
+            return postings[ind].firstRating();
+        return ratings == null ? Float.NaN : ratings[ind];
+    }
+
+    /**
+     * Number of records held by the key at the specified index
+     */
+    public int returnAddressCount(int ind) {
+        return postings[ind] == null ? 1 : postings[ind].size();
+    }
+
+    /**
+     * Adds the address of every record held by the key at the specified index to result
+     */
+    public void addRecordsTo(int ind, ArrayList<Address> result) {
+        if (postings[ind] == null)
+            result.add(Address.unpack(records[ind]));
+        else
+            postings[ind].addAddressesTo(result);
+    }
+
+    /**
+     * Passes the packed address of every record held by the key at the specified index to action, with its averageRating
+     */
+    public void forEachRecord(int ind, Index.EntryConsumer action) {
+        if (postings[ind] == null)
+            action.accept(records[ind], returnRating(ind));
+        else
+            postings[ind].forEach(action);
     }
 
     /**
@@ -32,21 +123,115 @@ public class LeafNode extends Node {
      * Returns the index where the record was added
      */
     public int addRecord(int key, Address address) {
-        if (this.returnRecords().size() == 0) {
-            this.records.add(address);
-            this.appendKey(key);
-            return 0;
+        return addRecord(key, address.pack(), Float.NaN);
+    }
+
+    /**
+     * Adds a new key to the node with the packed address of its only record and that record's averageRating
+     * Returns the index where the key was added
+     */
+    public int addRecord(int key, long packedAddress, float averageRating) {
+        int index = insertEntry(key);
+        records[index] = packedAddress;
+        if (ratings != null)
+            ratings[index] = averageRating;
+        addRecordCount(1);
+        return index;
+    }
+
+    /**
+     * Copies the key at index in source, together with all of its records, into this node
+     * Returns the index where the key was added
+     */
+    public int addEntry(LeafNode source, int index) {
+        int newIndex = insertEntry(source.returnKey(index));
+        records[newIndex] = source.records[index];
+        postings[newIndex] = source.postings[index];
+        if (ratings != null)
+            ratings[newIndex] = source.returnRating(index);
+        addRecordCount(returnAddressCount(newIndex));
+        return newIndex;
+    }
+
+    /**
+     * Adds another record to the key at the specified index, starting a posting list if it only had one
+     */
+    public void addToPosting(int ind, long packedAddress, float averageRating, int pageCapacity) {
+        if (postings[ind] == null) {
+            PostingList posting = new PostingList(pageCapacity, ratings != null);
+            posting.add(records[ind], returnRating(ind));
+            postings[ind] = posting;
         }
+        postings[ind].add(packedAddress, averageRating);
+        addRecordCount(1);
+    }
 
-        int index = appendKey(key);
-        records.add(address);
+    /**
+     * Removes one record from a key at the specified index that has more than one record
+     * Returns whether the key held that record
+     */
+    public boolean removeFromPosting(int ind, long packedAddress) {
+        PostingList posting = postings[ind];
+        if (posting == null || !posting.remove(packedAddress))
+            return false;
+        addRecordCount(-1);
+        if (posting.size() == 1) {
+            // Back to a single record, keep it inline again
+            records[ind] = posting.first();
+            if (ratings != null)
+                ratings[ind] = posting.firstRating();
+            postings[ind] = null;
+        }
+        return true;
+    }
 
-        for (int i = records.size() - 2; i >= index; i--) 
-            records.set(i + 1, records.get(i));
-        
-        records.set(index, address);
+    /**
+     * Appends a key held by count records, whose packed addresses and averageRatings start at from.
+     * The key must sort after the keys already in the node
+     */
+    public void appendEntry(int key, long[] packedAddresses, float[] averageRatings, int from, int count, int pageCapacity) {
+        int index = insertEntry(key);
+        records[index] = packedAddresses[from];
+        if (ratings != null)
+            ratings[index] = averageRatings[from];
+        if (count > 1) {
+            PostingList posting = new PostingList(pageCapacity, ratings != null);
+            for (int i = from; i < from + count; i++)
+                posting.add(packedAddresses[i], ratings != null ? averageRatings[i] : Float.NaN);
+            postings[index] = posting;
+        }
+        addRecordCount(count);
+    }
 
-        return index;
+    /**
+     * Moves the keys from index onwards, together with their records, to the end of other, which must be empty or hold smaller keys
+     */
+    public void moveRecordsTo(int index, LeafNode other) {
+        int recordCount = other.returnKeyCount();
+        int count = returnKeyCount() - index;
+        long movedRecords = 0;
+        for (int i = index; i < index + count; i++)
+            movedRecords += returnAddressCount(i);
+        addRecordCount(-movedRecords);
+        other.addRecordCount(movedRecords);
+        other.ensureCapacity(recordCount + count);
+        System.arraycopy(records, index, other.records, recordCount, count);
+        System.arraycopy(postings, index, other.postings, recordCount, count);
+        if (ratings != null)
+            System.arraycopy(ratings, index, other.ratings, recordCount, count);
+        Arrays.fill(postings, index, index + count, null);
+        moveKeysTo(index, other);
+    }
+
+    @Override
+    protected void ensureCapacity(int capacity) {
+        super.ensureCapacity(capacity);
+        if (capacity > records.length) {
+            records = Arrays.copyOf(records, Math.max(capacity, records.length * 2));
+            postings = Arrays.copyOf(postings, records.length);
+            if (ratings != null)
+                ratings = Arrays.copyOf(ratings, records.length);
+        }
     }
 
     /**
@@ -57,24 +242,103 @@ public class LeafNode extends Node {
     }
 
     /**
-     * Sets the next leaf node
+     * Sets the next leaf node, and makes this node the previous leaf node of it
      */
     public void setNext(LeafNode node) {
         this.next = node;
+        if (node != null)
+            node.previous = this;
+    }
+
+    /**
+     * Returns the previous leaf node
+     */
+    public LeafNode returnPrevious() {
+        return this.previous;
+    }
+
+    /**
+     * Sets the previous leaf node
+     */
+    public void setPrevious(LeafNode node) {
+        this.previous = node;
     }
 
     /**
-     * Deletes the record at the specified index
+     * Waits until no writer holds the leaf and returns its version, to be passed to validate once the leaf has been read
+     */
+    public long readVersion() {
+        long v;
+        while (((v = version) & 1) != 0)
+            Thread.onSpinWait();
+        return v;
+    }
+
+    /**
+     * Whether the leaf is unchanged since readVersion returned v, i.e. whether what was read in between can be trusted
+     */
+    public boolean validate(long v) {
+        // Keep the reads of the leaf from moving past the second read of the version
+        VarHandle.acquireFence();
+        return version == v;
+    }
+
+    /**
+     * Locks the leaf against other writers and makes concurrent readers retry
+     */
+    public void writeLock() {
+        while (true) {
+            long v = version;
+            if ((v & 1) == 0 && VERSION.compareAndSet(this, v, v + 1)) {
+                // Readers must see the odd version before any change to the leaf
+                VarHandle.storeStoreFence();
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Releases the lock taken by writeLock, publishing the changes under a new version
+     */
+    public void writeUnlock() {
+        version = version + 1;
+    }
+
+    /**
+     * Deletes the key at the specified index together with all of its records
      */
     public void deleteRecord(int index) {
+        int count = returnKeyCount();
+        addRecordCount(-returnAddressCount(index));
         deleteKey(index);  // Delete the key associated with the record
-        records.remove(index);  // Remove the record from the records list
+        System.arraycopy(records, index + 1, records, index, count - index - 1);
+        System.arraycopy(postings, index + 1, postings, index, count - index - 1);
+        if (ratings != null)
+            System.arraycopy(ratings, index + 1, ratings, index, count - index - 1);
+        postings[count - 1] = null;
     }
 
     /**
      * Deletes all records from the node.
      */
     public void deleteRecords() {
-        this.records = new ArrayList<Address>();  // Reset the records list
+        Arrays.fill(postings, 0, returnKeyCount(), null);
+        setRecordCount(0);
+        deleteKeys();
+    }
+
+    /**
+     * Inserts key in order and makes room for its records at the same index
+     */
+    private int insertEntry(int key) {
+        int count = returnKeyCount();
+        int index = appendKey(key);
+        System.arraycopy(records, index, records, index + 1, count - index);
+        System.arraycopy(postings, index, postings, index + 1, count - index);
+        if (ratings != null)
+            System.arraycopy(ratings, index, ratings, index + 1, count - index);
+        postings[index] = null;
+        return index;
     }
 }
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Evicts the least recently used frame.
+ * Frames are kept in a doubly linked list from least to most recently used. Sequential loads are put at the least recently used end.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+  private static final int NONE = -1;
+
+  private int[] prev;
+  private int[] next;
+  private boolean[] tracked;
+  private int head = NONE; // least recently used
+  private int tail = NONE; // most recently used
+
+  public LruEvictionPolicy(int frameCount) {
+    prev = new int[frameCount];
+    next = new int[frameCount];
+    tracked = new boolean[frameCount];
+    Arrays.fill(prev, NONE);
+    Arrays.fill(next, NONE);
+  }
+
+  public void recordLoad(int frameId, int blockNumber, boolean sequential) {
+    if (sequential) {
+      pushFront(frameId);
+    } else {
+      pushBack(frameId);
+    }
+  }
+
+  public void recordAccess(int frameId, boolean sequential) {
+    if (!sequential) {
+      unlink(frameId);
+      pushBack(frameId);
+    }
+  }
+
+  public int chooseVictim(IntPredicate isPinned) {
+    for (int frameId = head; frameId != NONE; frameId = next[frameId]) {
+      if (!isPinned.test(frameId)) {
+        unlink(frameId);
+        return frameId;
+      }
+    }
+    return NONE;
+  }
+
+  private void pushFront(int frameId) {
+    prev[frameId] = NONE;
+    next[frameId] = head;
+    if (head != NONE) {
+      prev[head] = frameId;
+    } else {
+      tail = frameId;
+    }
+    head = frameId;
+    tracked[frameId] = true;
+  }
+
+  private void pushBack(int frameId) {
+    next[frameId] = NONE;
+    prev[frameId] = tail;
+    if (tail != NONE) {
+      next[tail] = frameId;
+    } else {
+      head = frameId;
+    }
+    tail = frameId;
+    tracked[frameId] = true;
+  }
+
+  private void unlink(int frameId) {
+    if (!tracked[frameId]) {
+      return;
+    }
+    if (prev[frameId] != NONE) {
+      next[prev[frameId]] = next[frameId];
+    } else {
+      head = next[frameId];
+    }
+    if (next[frameId] != NONE) {
+      prev[next[frameId]] = prev[frameId];
+    } else {
+      tail = prev[frameId];
+    }
+    prev[frameId] = NONE;
+    next[frameId] = NONE;
+    tracked[frameId] = false;
+  }
+}
@@ -1,48 +1,116 @@
-import java.util.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
 public class Node {
-    private ArrayList<Integer> keys;
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final VarHandle RECORD_COUNT;
+
+    static {
+        try {
+            RECORD_COUNT = MethodHandles.lookup().findVarHandle(Node.class, "recordCount", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private int[] keys;
+    private int keyCount;
     private ParentNode parent;
     private boolean isLeaf;
     private boolean isRoot;
+    // Number of records under the node, counting every address of a posting list
+    private long recordCount;
 
     public Node() {
-        this.keys = new ArrayList<Integer>();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of keys to make room for up front. The node grows beyond it if needed.
+     */
+    public Node(int capacity) {
+        this.keys = new int[Math.max(1, capacity)];
+        this.keyCount = 0;
         this.isLeaf = false;
         this.isRoot = false;
     }
 
     /**
-     * Add key to keys list
+     * Add key to keys list, after any keys equal to it
+     * Returns the index the key was inserted at
      */
     public int appendKey(int key) {
+        int index = upperBound(key);
+        insertKeyAt(index, key);
+        return index;
+    }
 
-        int len = this.returnKeys().size();
+    /**
+     * Binary search for the index of the first key greater than or equal to key, or the key count if there is none
+     */
+    public int lowerBound(int key) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
 
-        if (len != 0) {
-            int i;
-            keys.add(key);
-            for (i = keys.size() -2; i >= 0; i--) {
+    /**
+     * Binary search for the index of the first key greater than key, or the key count if there is none
+     */
+    public int upperBound(int key) {
+        int low = 0;
+        int high = keyCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
 
-                if (keys.get(i) <= key) {
+    /**
+     * Inserts key at index, shifting the keys after it to the right
+     */
+    protected void insertKeyAt(int index, int key) {
+        ensureCapacity(keyCount + 1);
+        System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+        keys[index] = key;
+        keyCount++;
+    }
 
-                    i++;
-                    keys.set(i, key);
-                    break;
-                }
+    /**
+     * Appends count keys from src starting at from. They must all sort after the keys already in the node
+     */
+    protected void appendKeys(int[] src, int from, int count) {
+        ensureCapacity(keyCount + count);
+        System.arraycopy(src, from, keys, keyCount, count);
+        keyCount += count;
+    }
 
-                keys.set(i+1, keys.get(i));
-                if (i == 0) {
+    /**
+     * Moves the keys from index onwards to the end of other
+     */
+    protected void moveKeysTo(int index, Node other) {
+        other.appendKeys(keys, index, keyCount - index);
+        keyCount = index;
+    }
 
-                    keys.set(i, key);
-                    break;
-                }
-            }
-            return i;
-        }else{
-            this.keys.add(key);
-            return 0;
-        }
+    /**
+     * Grows the arrays backing the node so that they can hold at least capacity keys
+     */
+    protected void ensureCapacity(int capacity) {
+        if (capacity > keys.length)
+            keys = Arrays.copyOf(keys, Math.max(capacity, keys.length * 2));
     }
 
     /**
@@ -91,7 +159,7 @@ public class Node {
 
         this.isLeaf = false;
         this.isRoot = false;
-        keys = new ArrayList<Integer>();
+        deleteKeys();
     }
 
     // Getters and Setters
@@ -140,33 +208,60 @@ public class Node {
         parent = pn;
     }
 
+    /**
+     * Number of records under the node
+     */
+    public long returnRecordCount() {
+        return recordCount;
+    }
+
+    protected void addRecordCount(long delta) {
+        recordCount += delta;
+    }
+
+    /**
+     * Same as addRecordCount, but safe to call from several writers at once
+     */
+    protected void addRecordCountAtomically(long delta) {
+        RECORD_COUNT.getAndAdd(this, delta);
+    }
+
+    protected void setRecordCount(long count) {
+        recordCount = count;
+    }
+
     /**
      * Obtain key of given index
      */
     public int returnKey(int ind) {
-        return keys.get(ind);
+        if (ind >= keyCount)
+            throw new IndexOutOfBoundsException(String.format("Key index %d out of bounds for %d keys", ind, keyCount));
+        return keys[ind];
     }
 
     /**
-     * Getter for keys field
+     * Number of keys in the node
      */
-    public ArrayList<Integer> returnKeys() {
-        return this.keys;
+    public int returnKeyCount() {
+        return this.keyCount;
     }
 
     /**
      * Deletes all keys from the node.
      */
     public void deleteKeys() {
-        // Reset the keys list
-        this.keys = new ArrayList<Integer>();
+        // Keep the array, only the count matters
+        this.keyCount = 0;
     }
 
     /**
      * Deletes a key at a specified index
      */
     public void deleteKey(int index) {
-        this.keys.remove(index);
+        if (index >= keyCount)
+            throw new IndexOutOfBoundsException(String.format("Key index %d out of bounds for %d keys", index, keyCount));
+        System.arraycopy(keys, index + 1, keys, index, keyCount - index - 1);
+        keyCount--;
     }
 
     // public void insertChildToFront(Node newChild) {
@@ -1,11 +1,28 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class ParentNode extends Node {
+    private static final VarHandle CHILD_COUNT = MethodHandles.arrayElementVarHandle(long[].class);
+
     private ArrayList<Node> children;
+    // Number of records under each child, parallel to children
+    private long[] childCounts;
 
     public ParentNode() {
         super();
         children = new ArrayList<Node>();
+        childCounts = new long[4];
+    }
+
+    /**
+     * @param capacity Number of keys to make room for up front
+     */
+    public ParentNode(int capacity) {
+        super(capacity);
+        children = new ArrayList<Node>(capacity + 1);
+        childCounts = new long[capacity + 1];
     }
 
     // Getters and setters
@@ -24,6 +41,13 @@ public class ParentNode extends Node {
         return this.children.get(ind);
     }
 
+    /**
+     * Returns the number of records under the child node at the specified index
+     */
+    public long returnChildCount(int ind){
+        return this.childCounts[ind];
+    }
+
     /**
      * Appends a child node to the arraylist of children
      * If the parent has existing children, it adds the new child in the appropriate position based on key values
@@ -39,18 +63,20 @@ public class ParentNode extends Node {
 
             // Determine the position to insert the new child based on key values
             if (k >= s) {
-                this.children.add(this.appendKey(k) + 1, child);   
+                ind = this.appendKey(k) + 1;
             }
             else {
                 ind = 0;
                 this.appendKey(s);
-                this.children.add(0, child);
             }
+            this.children.add(ind, child);
+            insertChildCount(ind, child.returnRecordCount());
 
             child.setParent(this); // Set the parent of the new child
         }
         else{
             children.add(child);
+            insertChildCount(0, child.returnRecordCount());
             child.setParent(this); // Set the parent of the new child
         }
     }
@@ -61,6 +87,7 @@ public class ParentNode extends Node {
      */
     public void appendChild(Node child, int ind){
         children.add(0, child);
+        insertChildCount(0, child.returnRecordCount());
         child.setParent(this); // Set the parent of the new child
         deleteKeys(); // Clear the existing keys
         int size = children.size();
@@ -79,6 +106,7 @@ public class ParentNode extends Node {
      */
     public void deleteChildren() {
         children = new ArrayList<Node>(); // Create a new empty ArrayList to clear the children
+        setRecordCount(0);
     }
 
     /**
@@ -86,7 +114,12 @@ public class ParentNode extends Node {
      * Updates the keys list after removing the child
      */
     public void removeChild(Node child){
-        children.remove(child); // Remove the child from the list of children
+        int ind = children.indexOf(child);
+        if (ind >= 0) {
+            children.remove(ind); // Remove the child from the list of children
+            addRecordCount(-childCounts[ind]);
+            System.arraycopy(childCounts, ind + 1, childCounts, ind, children.size() - ind);
+        }
         deleteKeys(); // Clear the existing keys
         int size = children.size();
         for (int j = 1; j < size; j++) {
@@ -95,6 +128,37 @@ public class ParentNode extends Node {
         }
     }
 
+    /**
+     * Takes the smallest key of every child but the first again, e.g. after keys moved between children
+     */
+    public void refreshKeys() {
+        deleteKeys();
+        int size = children.size();
+        for (int j = 1; j < size; j++)
+            appendKey(children.get(j).returnSmallest());
+    }
+
+    /**
+     * Takes the record count of every child again, e.g. after records moved between children
+     */
+    public void refreshCounts() {
+        long total = 0;
+        for (int j = 0; j < children.size(); j++) {
+            childCounts[j] = children.get(j).returnRecordCount();
+            total += childCounts[j];
+        }
+        setRecordCount(total);
+    }
+
+    /**
+     * Adds delta to the record count of the child at the specified index and of this node.
+     * Safe to call from several writers at once as long as the children do not change
+     */
+    public void addToChildCount(int ind, long delta) {
+        CHILD_COUNT.getAndAdd(childCounts, ind, delta);
+        addRecordCountAtomically(delta);
+    }
+
     /**
      * Returns the child node before the specified node
      */
@@ -113,4 +177,13 @@ public class ParentNode extends Node {
         if (ind == maxInd){return null;} // If the specified node is the last child, there is no child after it
         else{return children.get(children.indexOf(node)+1);} // Otherwise, return the node after the specified node
     }  
+
+    private void insertChildCount(int ind, long count) {
+        int size = children.size(); // The child is already in the list
+        if (size > childCounts.length)
+            childCounts = Arrays.copyOf(childCounts, Math.max(size, childCounts.length * 2));
+        System.arraycopy(childCounts, ind, childCounts, ind + 1, size - 1 - ind);
+        childCounts[ind] = count;
+        addRecordCount(count);
+    }
 }
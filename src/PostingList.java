@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Addresses of every record sharing one key of the B+ tree, packed with Address.pack.
+ * Short lists are kept inline in a right-sized array. Once that is full, further addresses spill into a chain of
+ * fixed-size overflow pages, so a popular key never makes its leaf node grow.
+ * A list of a covering index keeps the averageRating of every address next to it.
+ */
+public class PostingList {
+    private static final int INLINE_CAPACITY = 16;
+
+    private final int pageCapacity;
+    private final boolean covering;
+    private long[] inline;
+    // averageRating of each inline address, only kept when covering
+    private float[] inlineRatings;
+    private int inlineCount;
+    private OverflowPage firstPage;
+    private OverflowPage lastPage;
+    private int pageCount;
+    private int size;
+
+    /**
+     * @param pageCapacity Number of addresses that fit in one overflow page
+     * @param covering     Whether to keep the averageRating of every address
+     */
+    public PostingList(int pageCapacity, boolean covering) {
+        this.pageCapacity = pageCapacity;
+        this.covering = covering;
+        this.inline = new long[2];
+        if (covering)
+            this.inlineRatings = new float[2];
+    }
+
+    /**
+     * Appends an address with the averageRating of its record to the end of the list
+     */
+    public void add(long address, float averageRating) {
+        if (firstPage == null && inlineCount < INLINE_CAPACITY) {
+            if (inlineCount == inline.length) {
+                inline = Arrays.copyOf(inline, Math.min(INLINE_CAPACITY, inline.length * 2));
+                if (covering)
+                    inlineRatings = Arrays.copyOf(inlineRatings, inline.length);
+            }
+            if (covering)
+                inlineRatings[inlineCount] = averageRating;
+            inline[inlineCount++] = address;
+        } else {
+            if (lastPage == null || lastPage.count == pageCapacity) {
+                OverflowPage page = new OverflowPage(pageCapacity, covering);
+                if (lastPage == null)
+                    firstPage = page;
+                else
+                    lastPage.next = page;
+                lastPage = page;
+                pageCount++;
+            }
+            if (covering)
+                lastPage.ratings[lastPage.count] = averageRating;
+            lastPage.addresses[lastPage.count++] = address;
+        }
+        size++;
+    }
+
+    /**
+     * Removes one occurrence of address. Overflow pages left empty are unlinked
+     * Returns whether the address was found
+     */
+    public boolean remove(long address) {
+        for (int i = 0; i < inlineCount; i++) {
+            if (inline[i] == address) {
+                System.arraycopy(inline, i + 1, inline, i, inlineCount - i - 1);
+                if (covering)
+                    System.arraycopy(inlineRatings, i + 1, inlineRatings, i, inlineCount - i - 1);
+                inlineCount--;
+                size--;
+                return true;
+            }
+        }
+
+        OverflowPage previous = null;
+        for (OverflowPage page = firstPage; page != null; previous = page, page = page.next) {
+            for (int i = 0; i < page.count; i++) {
+                if (page.addresses[i] != address)
+                    continue;
+                System.arraycopy(page.addresses, i + 1, page.addresses, i, page.count - i - 1);
+                if (covering)
+                    System.arraycopy(page.ratings, i + 1, page.ratings, i, page.count - i - 1);
+                page.count--;
+                size--;
+                if (page.count == 0)
+                    unlink(previous, page);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of addresses in the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the first address in the list
+     */
+    public long first() {
+        if (size == 0)
+            throw new IllegalStateException("Posting list is empty");
+        return inlineCount > 0 ? inline[0] : firstPage.addresses[0];
+    }
+
+    /**
+     * Returns the averageRating kept for the first address in the list, NaN if the list does not keep ratings
+     */
+    public float firstRating() {
+        if (size == 0)
+            throw new IllegalStateException("Posting list is empty");
+        if (!covering)
+            return Float.NaN;
+        return inlineCount > 0 ? inlineRatings[0] : firstPage.ratings[0];
+    }
+
+    /**
+     * Adds every address in the list to result, in list order
+     */
+    public void addAddressesTo(ArrayList<Address> result) {
+        for (int i = 0; i < inlineCount; i++)
+            result.add(Address.unpack(inline[i]));
+        for (OverflowPage page = firstPage; page != null; page = page.next)
+            for (int i = 0; i < page.count; i++)
+                result.add(Address.unpack(page.addresses[i]));
+    }
+
+    /**
+     * Passes every address in the list to action together with its averageRating, in list order
+     */
+    public void forEach(Index.EntryConsumer action) {
+        for (int i = 0; i < inlineCount; i++)
+            action.accept(inline[i], covering ? inlineRatings[i] : Float.NaN);
+        for (OverflowPage page = firstPage; page != null; page = page.next)
+            for (int i = 0; i < page.count; i++)
+                action.accept(page.addresses[i], covering ? page.ratings[i] : Float.NaN);
+    }
+
+    /**
+     * Number of overflow pages the list has spilled into
+     */
+    public int getOverflowPageCount() {
+        return pageCount;
+    }
+
+    private void unlink(OverflowPage previous, OverflowPage page) {
+        if (previous == null)
+            firstPage = page.next;
+        else
+            previous.next = page.next;
+        if (lastPage == page)
+            lastPage = previous;
+        pageCount--;
+    }
+
+    private static class OverflowPage {
+        private final long[] addresses;
+        private final float[] ratings;
+        private int count;
+        private OverflowPage next;
+
+        OverflowPage(int capacity, boolean covering) {
+            this.addresses = new long[capacity];
+            this.ratings = covering ? new float[capacity] : null;
+        }
+    }
+}
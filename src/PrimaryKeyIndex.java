@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+/**
+ * Hash index from the uuid(tconst) of every live record to its packed address.
+ * Open addressing with linear probing over primitive arrays, so an entry costs no object. The 10 uuid bytes are kept
+ * as a long and a short, exactly as they are stored in a record, so keys are compared without decoding any String.
+ * Removal shifts the following entries of the probe run back instead of leaving tombstones behind.
+ */
+public class PrimaryKeyIndex {
+    public static final long NOT_FOUND = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    // Block ids start at 1, so no record is ever at packed address 0
+    private static final long EMPTY = 0;
+
+    // First 8 and last 2 bytes of the uuid in each slot
+    private long[] keyPrefixes;
+    private short[] keySuffixes;
+    // Packed address of the record in each slot, EMPTY for a free slot
+    private long[] addresses;
+    private int size;
+
+    public PrimaryKeyIndex() {
+        clear();
+    }
+
+    public void clear() {
+        keyPrefixes = new long[INITIAL_CAPACITY];
+        keySuffixes = new short[INITIAL_CAPACITY];
+        addresses = new long[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the packed address of the record with the uuid, or NOT_FOUND
+     */
+    public long get(String uuid) {
+        byte[] bytes = toKeyBytes(uuid);
+        return get(prefixOf(bytes), suffixOf(bytes));
+    }
+
+    /**
+     * Returns the packed address of the record with the uuid of the viewed record, or NOT_FOUND, without decoding the uuid
+     */
+    public long get(RecordView record) {
+        return get(record.getUuidPrefix(), record.getUuidSuffix());
+    }
+
+    /**
+     * Maps the uuid to a packed address, replacing any address it was mapped to
+     */
+    public void put(String uuid, long packedAddress) {
+        byte[] bytes = toKeyBytes(uuid);
+        put(prefixOf(bytes), suffixOf(bytes), packedAddress);
+    }
+
+    /**
+     * Maps the uuid of the viewed record to a packed address, without decoding the uuid
+     */
+    public void put(RecordView record, long packedAddress) {
+        put(record.getUuidPrefix(), record.getUuidSuffix(), packedAddress);
+    }
+
+    /**
+     * Removes the uuid. Returns the packed address it was mapped to, or NOT_FOUND
+     */
+    public long remove(String uuid) {
+        byte[] bytes = toKeyBytes(uuid);
+        long prefix = prefixOf(bytes);
+        short suffix = suffixOf(bytes);
+        int slot = find(prefix, suffix);
+        if (addresses[slot] == EMPTY) {
+            return NOT_FOUND;
+        }
+        long address = addresses[slot];
+        deleteSlot(slot);
+        return address;
+    }
+
+    private long get(long prefix, short suffix) {
+        int slot = find(prefix, suffix);
+        return addresses[slot] == EMPTY ? NOT_FOUND : addresses[slot];
+    }
+
+    private void put(long prefix, short suffix, long packedAddress) {
+        if (packedAddress == EMPTY) {
+            throw new IllegalArgumentException("Block ids start at 1");
+        }
+        int slot = find(prefix, suffix);
+        if (addresses[slot] == EMPTY) {
+            if (size + 1 > addresses.length * MAX_LOAD_FACTOR) {
+                grow();
+                slot = find(prefix, suffix);
+            }
+            keyPrefixes[slot] = prefix;
+            keySuffixes[slot] = suffix;
+            size++;
+        }
+        addresses[slot] = packedAddress;
+    }
+
+    /**
+     * Returns the slot holding the key, or the free slot that ends its probe run
+     */
+    private int find(long prefix, short suffix) {
+        int mask = addresses.length - 1;
+        int slot = hash(prefix, suffix) & mask;
+        while (addresses[slot] != EMPTY && (keyPrefixes[slot] != prefix || keySuffixes[slot] != suffix)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Frees the slot, moving back every later entry of the probe run that can no longer be reached past the gap
+     */
+    private void deleteSlot(int slot) {
+        int mask = addresses.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (addresses[next] != EMPTY) {
+            int home = hash(keyPrefixes[next], keySuffixes[next]) & mask;
+            // The entry may fill the gap unless its home slot lies cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keyPrefixes[gap] = keyPrefixes[next];
+                keySuffixes[gap] = keySuffixes[next];
+                addresses[gap] = addresses[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[gap] = EMPTY;
+        size--;
+    }
+
+    private void grow() {
+        long[] oldPrefixes = keyPrefixes;
+        short[] oldSuffixes = keySuffixes;
+        long[] oldAddresses = addresses;
+        keyPrefixes = new long[oldAddresses.length * 2];
+        keySuffixes = new short[oldAddresses.length * 2];
+        addresses = new long[oldAddresses.length * 2];
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != EMPTY) {
+                int slot = find(oldPrefixes[i], oldSuffixes[i]);
+                keyPrefixes[slot] = oldPrefixes[i];
+                keySuffixes[slot] = oldSuffixes[i];
+                addresses[slot] = oldAddresses[i];
+            }
+        }
+    }
+
+    private static int hash(long prefix, short suffix) {
+        // Murmur3 finalizer, the uuids share most of their bytes
+        long h = prefix ^ ((long) suffix * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * The uuid bytes as Record.marshal writes them: cut or zero-filled to Record.UUID_BYTE_SIZE
+     */
+    private static byte[] toKeyBytes(String uuid) {
+        return Arrays.copyOf(uuid.getBytes(), Record.UUID_BYTE_SIZE);
+    }
+
+    private static long prefixOf(byte[] bytes) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (bytes[i] & 0xFF);
+        }
+        return prefix;
+    }
+
+    private static short suffixOf(byte[] bytes) {
+        return (short) (((bytes[8] & 0xFF) << 8) | (bytes[9] & 0xFF));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * The access method the QueryPlanner chose for a numVotes predicate, together with the estimates it was chosen on.
+ * Costs are in units of one sequential block read
+ */
+public class QueryPlan {
+    public enum Method {
+        // Follow the B+ tree in key order and read the block of every match as it comes
+        INDEX_SCAN("B+ Tree"),
+        // Gather every matching address from the B+ tree, sort them and read each block holding a match once
+        SORTED_INDEX_SCAN("B+ Tree Sorted Block Fetch"),
+        // Read every block the zone maps do not rule out
+        FULL_SCAN("Brute-force Linear Scan");
+
+        private final String displayName;
+
+        Method(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final int min;
+    private final int max;
+    private final double selectivity;
+    private final double estimatedRecords;
+    private final double estimatedBlocks;
+    private final double[] costs;
+    private final Method method;
+
+    /**
+     * @param costs Estimated cost of every method, indexed by ordinal
+     */
+    public QueryPlan(int min, int max, double selectivity, double estimatedRecords, double estimatedBlocks, double[] costs) {
+        if (costs.length != Method.values().length) {
+            throw new IllegalArgumentException(String.format("Expected %d costs, got %d", Method.values().length, costs.length));
+        }
+        this.min = min;
+        this.max = max;
+        this.selectivity = selectivity;
+        this.estimatedRecords = estimatedRecords;
+        this.estimatedBlocks = estimatedBlocks;
+        this.costs = costs.clone();
+        Method cheapest = Method.INDEX_SCAN;
+        for (Method candidate : Method.values()) {
+            if (costs[candidate.ordinal()] < costs[cheapest.ordinal()]) {
+                cheapest = candidate;
+            }
+        }
+        this.method = cheapest;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Estimated fraction of the records that match
+     */
+    public double getSelectivity() {
+        return selectivity;
+    }
+
+    public double getEstimatedRecords() {
+        return estimatedRecords;
+    }
+
+    /**
+     * Estimated number of distinct blocks holding a match
+     */
+    public double getEstimatedBlocks() {
+        return estimatedBlocks;
+    }
+
+    public double getCost(Method method) {
+        return costs[method.ordinal()];
+    }
+
+    /**
+     * The cheapest method
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder plan = new StringBuilder();
+        plan.append(String.format("Query Plan for numVotes in [%d, %d]:%n", min, max));
+        plan.append(String.format("Estimated Selectivity: %.4f, Records: %.0f, Blocks: %.0f%n", selectivity, estimatedRecords, estimatedBlocks));
+        for (Method candidate : Method.values()) {
+            plan.append(String.format("Estimated Cost of %s: %.1f%n", candidate.getDisplayName(), costs[candidate.ordinal()]));
+        }
+        plan.append(String.format("Chosen Method: %s", method.getDisplayName()));
+        return plan.toString();
+    }
+}
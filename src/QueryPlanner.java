@@ -0,0 +1,89 @@
+/**
+ * Picks the access method for a numVotes predicate by estimating the cost of each from the column statistics.
+ * The estimates follow the ones of the PostgreSQL planner: a random block read costs more than a sequential one,
+ * matches in key order are spread over the blocks according to the correlation of the column,
+ * and a buffer pool of the given size absorbs repeated reads of the same block.
+ * Over a covering index the index scan reads no block at all.
+ */
+public class QueryPlanner {
+    public static final double SEQUENTIAL_BLOCK_COST = 1.0;
+    public static final double RANDOM_BLOCK_COST = 4.0;
+    // Reading a record from a pinned block and checking the predicate on it
+    public static final double RECORD_COST = 0.01;
+    // Reading one entry of the index
+    public static final double INDEX_ENTRY_COST = 0.005;
+    // One comparison while sorting addresses
+    public static final double COMPARISON_COST = 0.0025;
+
+    private final int bufferPoolFrames;
+    private final boolean isIndexOnly;
+
+    /**
+     * @param bufferPoolFrames Number of frames of the buffer pool the records are read through
+     * @param isIndexOnly      Whether the index scan is answered from a covering index without reading blocks
+     */
+    public QueryPlanner(int bufferPoolFrames, boolean isIndexOnly) {
+        if (bufferPoolFrames < 1) {
+            throw new IllegalArgumentException("Buffer pool must have at least one frame");
+        }
+        this.bufferPoolFrames = bufferPoolFrames;
+        this.isIndexOnly = isIndexOnly;
+    }
+
+    /**
+     * Estimates every method for numVotes between min and max inclusive and returns the cheapest
+     *
+     * @param statistics       Statistics of the numVotes column
+     * @param totalBlocks      Number of blocks holding records
+     * @param candidateBlocks  Number of blocks a full scan would read, i.e. those the zone maps do not rule out
+     * @param candidateRecords Number of records in those blocks
+     */
+    public QueryPlan plan(ColumnStatistics statistics, int min, int max, int totalBlocks, int candidateBlocks, long candidateRecords) {
+        double selectivity = statistics.estimateSelectivity(min, max);
+        double records = selectivity * statistics.getRecordCount();
+        double blocks = Math.max(1, totalBlocks);
+        double correlationSquared = statistics.getCorrelation() * statistics.getCorrelation();
+
+        // Perfectly correlated matches sit next to each other, uncorrelated ones are spread evenly over all blocks
+        double packedBlocks = Math.min(records, Math.ceil(selectivity * blocks));
+        double spreadBlocks = blocks * (1 - Math.pow(1 - 1 / blocks, records));
+        double matchingBlocks = spreadBlocks + correlationSquared * (packedBlocks - spreadBlocks);
+        double indexEntriesCost = records * (INDEX_ENTRY_COST + RECORD_COST);
+
+        double[] costs = new double[QueryPlan.Method.values().length];
+
+        // In key order a block is read again whenever it was evicted between two of its matches
+        double worstReads = estimateBlockReads(records, blocks) * RANDOM_BLOCK_COST;
+        double bestReads = packedBlocks == 0 ? 0 : RANDOM_BLOCK_COST + (packedBlocks - 1) * SEQUENTIAL_BLOCK_COST;
+        costs[QueryPlan.Method.INDEX_SCAN.ordinal()] = isIndexOnly
+                ? records * INDEX_ENTRY_COST
+                : worstReads + correlationSquared * (bestReads - worstReads) + indexEntriesCost;
+
+        // Reading blocks in block order gets closer to sequential the larger the share of blocks read
+        double blockCost = matchingBlocks < 2
+                ? RANDOM_BLOCK_COST
+                : RANDOM_BLOCK_COST - (RANDOM_BLOCK_COST - SEQUENTIAL_BLOCK_COST) * Math.sqrt(matchingBlocks / blocks);
+        double sortCost = records > 1 ? records * (Math.log(records) / Math.log(2)) * COMPARISON_COST : 0;
+        costs[QueryPlan.Method.SORTED_INDEX_SCAN.ordinal()] = matchingBlocks * blockCost + indexEntriesCost + sortCost;
+
+        costs[QueryPlan.Method.FULL_SCAN.ordinal()] = candidateBlocks * SEQUENTIAL_BLOCK_COST + candidateRecords * RECORD_COST;
+
+        return new QueryPlan(min, max, selectivity, records, matchingBlocks, costs);
+    }
+
+    /**
+     * Number of block reads needed to fetch records spread at random over blocks, through the buffer pool.
+     * Mackert and Lohman's approximation, as used by PostgreSQL
+     */
+    private double estimateBlockReads(double records, double blocks) {
+        double frames = bufferPoolFrames;
+        if (blocks <= frames) {
+            return Math.min(2 * blocks * records / (2 * blocks + records), blocks);
+        }
+        double limit = 2 * blocks * frames / (2 * blocks - frames);
+        if (records <= limit) {
+            return 2 * blocks * records / (2 * blocks + records);
+        }
+        return frames + (records - limit) * (blocks - frames) / blocks;
+    }
+}
@@ -7,6 +7,11 @@ public class Record {
   public static final Integer VOTES_BYTE_SIZE = 4;
   public static final Integer RECORD_BYTE_SIZE = RECORD_HEADER_BYTE_SIZE + 2 + UUID_BYTE_SIZE + 2 + RATING_BYTE_SIZE + VOTES_BYTE_SIZE; // 24 Bytes
 
+  // Byte offset of each field within a record
+  public static final int UUID_OFFSET = RECORD_HEADER_BYTE_SIZE + 2;
+  public static final int RATING_OFFSET = UUID_OFFSET + UUID_BYTE_SIZE + 2;
+  public static final int VOTES_OFFSET = RATING_OFFSET + RATING_BYTE_SIZE;
+
 
   private short isDeleted = 0;
   private byte[] padding1 = new byte[2];
@@ -27,37 +32,69 @@ public class Record {
    */
   public byte[] marshal() {
     ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTE_SIZE); // Total size including padding bytes
+    marshal(buffer, 0);
+    return buffer.array();
+  }
 
-    buffer.putShort(isDeleted);
-    buffer.put(padding1);
-
-    byte[] uuidBytes = uuid.getBytes();
-    buffer.put(uuidBytes);
-    buffer.position(4 + UUID_BYTE_SIZE); // uuid is variable sized but we want it fixed to UUID_BYTE_SIZE
-    buffer.put(padding2);
+  /**
+   * Writes the current record into buffer at offset, without changing the buffer's position
+   */
+  public void marshal(ByteBuffer buffer, int offset) {
+    buffer.putShort(offset, isDeleted);
+    buffer.put(offset + 2, padding1);
+
+    // uuid is variable sized but we want it fixed to UUID_BYTE_SIZE, so zero-fill the rest
+    int uuidByteSize = putAsciiUuid(buffer, offset + UUID_OFFSET);
+    if (uuidByteSize < 0) {
+      byte[] uuidBytes = uuid.getBytes();
+      uuidByteSize = Math.min(uuidBytes.length, UUID_BYTE_SIZE);
+      buffer.put(offset + UUID_OFFSET, uuidBytes, 0, uuidByteSize);
+    }
+    for (int i = uuidByteSize; i < UUID_BYTE_SIZE; i++) {
+      buffer.put(offset + UUID_OFFSET + i, (byte) 0);
+    }
+    buffer.put(offset + UUID_OFFSET + UUID_BYTE_SIZE, padding2);
+
+    buffer.putFloat(offset + RATING_OFFSET, averageRating);
+    buffer.putInt(offset + VOTES_OFFSET, numVotes);
+  }
 
-    buffer.putFloat(averageRating);
-    buffer.putInt(numVotes);
-    return buffer.array();
+  /**
+   * Writes an ASCII uuid, which every tconst is, byte by byte instead of encoding it into a new byte[].
+   * Returns the number of bytes written, or -1 without writing anything if the uuid is not ASCII
+   */
+  private int putAsciiUuid(ByteBuffer buffer, int position) {
+    int length = Math.min(uuid.length(), UUID_BYTE_SIZE);
+    for (int i = 0; i < length; i++) {
+      if (uuid.charAt(i) >= 0x80) {
+        return -1;
+      }
+    }
+    for (int i = 0; i < length; i++) {
+      buffer.put(position + i, (byte) uuid.charAt(i));
+    }
+    return length;
   }
 
   /**
    * Converts a Byte[] back to a Record
    */
   public static Record unmarshal(byte[] bytes) {
-    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    return unmarshal(ByteBuffer.wrap(bytes), 0);
+  }
 
-    short isDeleted = buffer.getShort();
-    buffer.position(buffer.position() + 2);
+  /**
+   * Reads the record stored in buffer at offset, without changing the buffer's position
+   */
+  public static Record unmarshal(ByteBuffer buffer, int offset) {
+    short isDeleted = buffer.getShort(offset);
 
     byte[] uuidBytes = new byte[UUID_BYTE_SIZE];
-    buffer.get(uuidBytes);
-
-    buffer.position(buffer.position() + 2);
+    buffer.get(offset + UUID_OFFSET, uuidBytes);
     String uuid = new String(uuidBytes);
 
-    float averageRating = buffer.getFloat();
-    int numVotes = buffer.getInt();
+    float averageRating = buffer.getFloat(offset + RATING_OFFSET);
+    int numVotes = buffer.getInt(offset + VOTES_OFFSET);
 
     return new Record(uuid, averageRating, numVotes, isDeleted);
   }
@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a record inside a Block.
+ * Fields are read as primitives straight from the block's bytes, so one RecordView can be reused for every record of a scan without allocating.
+ * The uuid is only decoded when asked for. A RecordView is only valid while the block it was taken from is pinned.
+ */
+public class RecordView {
+  ByteBuffer bytes;
+  int offset;
+
+  /**
+   * Points this view at the record stored in bytes at offset
+   */
+  public RecordView wrap(ByteBuffer bytes, int offset) {
+    this.bytes = bytes;
+    this.offset = offset;
+    return this;
+  }
+
+  public boolean isTombstone() {
+    return bytes.getShort(offset) == 1;
+  }
+
+  public int getNumVotes() {
+    return bytes.getInt(offset + Record.VOTES_OFFSET);
+  }
+
+  public float getAverageRating() {
+    return bytes.getFloat(offset + Record.RATING_OFFSET);
+  }
+
+  /**
+   * Decodes the uuid, which allocates a String
+   */
+  public String getUuid() {
+    byte[] uuidBytes = new byte[Record.UUID_BYTE_SIZE];
+    bytes.get(offset + Record.UUID_OFFSET, uuidBytes);
+    return new String(uuidBytes);
+  }
+
+  /**
+   * First 8 bytes of the uuid as a big-endian long, read without decoding the uuid
+   */
+  public long getUuidPrefix() {
+    return bytes.getLong(offset + Record.UUID_OFFSET);
+  }
+
+  /**
+   * Last 2 bytes of the uuid as a big-endian short
+   */
+  public short getUuidSuffix() {
+    return bytes.getShort(offset + Record.UUID_OFFSET + 8);
+  }
+
+  /**
+   * Copies the viewed record out into a Record that stays valid after the block is unpinned
+   */
+  public Record toRecord() {
+    return Record.unmarshal(bytes, offset);
+  }
+
+  @Override
+  public String toString() {
+    return toRecord().toString();
+  }
+}
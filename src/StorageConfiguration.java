@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * Class for storage related configuration.
  * Implemented in the builder pattern to support overriding configuration properties easily.
@@ -7,23 +9,239 @@ public class StorageConfiguration {
    * Disk utilization threshold to trigger compaction process
    */
   private float compactionThreshold;
+  /**
+   * Size of a block on disk, a buffer pool frame and a B+ tree node
+   */
+  private int pageSize;
+  /**
+   * Number of blocks the buffer pool keeps in memory
+   */
+  private int bufferPoolSize;
+  /**
+   * Number of pages the buffer pool of a DiskBPlusTree keeps in memory
+   */
+  private int indexBufferPoolSize;
+  /**
+   * Which frame the buffer pool evicts when it is full
+   */
+  private EvictionPolicy.TYPE evictionPolicy;
+
+  /**
+   * Fraction of each B+ tree leaf filled by a bulk load, leaving room for later inserts before leaves split
+   */
+  private float bulkLoadFillFactor;
+
+  /**
+   * Whether the numVotes index also keeps the averageRating of every record next to its address,
+   * so rating aggregates over a numVotes range are answered without reading any data block
+   */
+  private boolean coveringIndex;
+
+  /**
+   * When a logged operation is forced to disk, relative to the operation returning
+   */
+  private WriteAheadLog.DURABILITY walDurability;
+
+  /**
+   * Number of log entries a group commit forces at once without waiting for the window to end
+   */
+  private int groupCommitSize;
+
+  /**
+   * How long a group commit waits for more log entries before forcing, and how often an async log is forced
+   */
+  private long groupCommitWindowMicros;
+
+  /**
+   * Size in bytes of each preallocated segment file of the write ahead log
+   */
+  private int walSegmentSize;
+
+  /**
+   * Number of operations logged between two checkpoints of a file-backed disk, which bounds how much recovery replays.
+   * 0 only checkpoints when asked to
+   */
+  private long checkpointInterval;
+
+  /**
+   * Number of threads recovery decodes the log and works out its index changes on. 1 replays on the calling thread only
+   */
+  private int recoveryThreads;
 
   private StorageConfiguration(Builder builder) {
       this.compactionThreshold = builder.compactionThreshold;
+      this.pageSize = builder.pageSize;
+      this.bufferPoolSize = builder.bufferPoolSize;
+      this.indexBufferPoolSize = builder.indexBufferPoolSize;
+      this.evictionPolicy = builder.evictionPolicy;
+      this.bulkLoadFillFactor = builder.bulkLoadFillFactor;
+      this.coveringIndex = builder.coveringIndex;
+      this.walDurability = builder.walDurability;
+      this.groupCommitSize = builder.groupCommitSize;
+      this.groupCommitWindowMicros = builder.groupCommitWindowMicros;
+      this.walSegmentSize = builder.walSegmentSize;
+      this.checkpointInterval = builder.checkpointInterval;
+      this.recoveryThreads = builder.recoveryThreads;
   }
 
   public float getCompactionThreshold() {
       return compactionThreshold;
   }
+
+  public int getPageSize() {
+      return pageSize;
+  }
+
+  public int getBufferPoolSize() {
+      return bufferPoolSize;
+  }
+
+  public int getIndexBufferPoolSize() {
+      return indexBufferPoolSize;
+  }
+
+  public EvictionPolicy.TYPE getEvictionPolicy() {
+      return evictionPolicy;
+  }
+
+  public float getBulkLoadFillFactor() {
+      return bulkLoadFillFactor;
+  }
+
+  public boolean isCoveringIndex() {
+      return coveringIndex;
+  }
+
+  public WriteAheadLog.DURABILITY getWalDurability() {
+      return walDurability;
+  }
+
+  public int getGroupCommitSize() {
+      return groupCommitSize;
+  }
+
+  public long getGroupCommitWindowMicros() {
+      return groupCommitWindowMicros;
+  }
+
+  public int getWalSegmentSize() {
+      return walSegmentSize;
+  }
+
+  public long getCheckpointInterval() {
+      return checkpointInterval;
+  }
+
+  public int getRecoveryThreads() {
+      return recoveryThreads;
+  }
   
   public static class Builder {
+    public static final int[] SUPPORTED_PAGE_SIZES = {Block.BLOCK_BYTE_SIZE, 4096, 8192, 16384};
+
     private float compactionThreshold = 0.9f;
+    private int pageSize = Block.BLOCK_BYTE_SIZE;
+    private int bufferPoolSize = 1024;
+    private int indexBufferPoolSize = 256;
+    private EvictionPolicy.TYPE evictionPolicy = EvictionPolicy.TYPE.TWO_QUEUE;
+    private float bulkLoadFillFactor = 0.9f;
+    private boolean coveringIndex = false;
+    private WriteAheadLog.DURABILITY walDurability = WriteAheadLog.DURABILITY.GROUP_COMMIT;
+    private int groupCommitSize = 64;
+    private long groupCommitWindowMicros = 200;
+    private int walSegmentSize = 1 << 20;
+    private long checkpointInterval = 1 << 16;
+    private int recoveryThreads = 1;
 
     public Builder setCompactionThreshold(float value) {
         this.compactionThreshold = value;
         return this;
     }
 
+    public Builder setPageSize(int value) {
+        for (int supportedPageSize : SUPPORTED_PAGE_SIZES) {
+            if (supportedPageSize == value) {
+                this.pageSize = value;
+                return this;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unsupported page size %d, expected one of %s", value, Arrays.toString(SUPPORTED_PAGE_SIZES)));
+    }
+
+    public Builder setBufferPoolSize(int value) {
+        this.bufferPoolSize = value;
+        return this;
+    }
+
+    public Builder setIndexBufferPoolSize(int value) {
+        this.indexBufferPoolSize = value;
+        return this;
+    }
+
+    public Builder setEvictionPolicy(EvictionPolicy.TYPE value) {
+        this.evictionPolicy = value;
+        return this;
+    }
+
+    public Builder setBulkLoadFillFactor(float value) {
+        if (value <= 0.5f || value > 1f) {
+            throw new IllegalArgumentException(String.format("Bulk load fill factor must be in (0.5, 1] but was %f", value));
+        }
+        this.bulkLoadFillFactor = value;
+        return this;
+    }
+
+    public Builder setCoveringIndex(boolean value) {
+        this.coveringIndex = value;
+        return this;
+    }
+
+    public Builder setWalDurability(WriteAheadLog.DURABILITY value) {
+        this.walDurability = value;
+        return this;
+    }
+
+    public Builder setGroupCommitSize(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(String.format("Group commit size must be at least 1 but was %d", value));
+        }
+        this.groupCommitSize = value;
+        return this;
+    }
+
+    public Builder setGroupCommitWindowMicros(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("Group commit window must not be negative but was %d", value));
+        }
+        this.groupCommitWindowMicros = value;
+        return this;
+    }
+
+    public Builder setWalSegmentSize(int value) {
+        int minimum = WriteAheadLog.SEGMENT_HEADER_BYTE_SIZE + WriteAheadLog.LOG_BYTE_SIZE;
+        if (value < minimum) {
+            throw new IllegalArgumentException(String.format("WAL segment size must be at least %d Bytes but was %d", minimum, value));
+        }
+        this.walSegmentSize = value;
+        return this;
+    }
+
+    public Builder setCheckpointInterval(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("Checkpoint interval must not be negative but was %d", value));
+        }
+        this.checkpointInterval = value;
+        return this;
+    }
+
+    public Builder setRecoveryThreads(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(String.format("Recovery needs at least 1 thread but was given %d", value));
+        }
+        this.recoveryThreads = value;
+        return this;
+    }
+
     public StorageConfiguration build() {
         return new StorageConfiguration(this);
     }
@@ -1,64 +1,593 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * Blocks are logical units representing a particular slice of the Disk
  * This class is to encapsulate the logic for interactions between Disk and Block
  */
 public class StorageManager {
+    // Statistics are gathered again once more records than this plus a tenth of the analyzed ones changed
+    private static final int ANALYZE_THRESHOLD = 50;
+    private static final double ANALYZE_SCALE_FACTOR = 0.1;
+    private static final long REDONE_DELETE = -1;
+
     private Integer numRecords = 0;
     private int occupiedBlocks = 0;
     Disk disk;
     StorageConfiguration config;
     CrashRecovery recovery;
-    BPlusTree bPlusTree;
+    Index bPlusTree;
+    BufferPool bufferPool;
+    ZoneMap zoneMap = new ZoneMap();
+    PrimaryKeyIndex primaryKeyIndex = new PrimaryKeyIndex();
+    QueryPlanner planner;
+    // Null until the numVotes column is analyzed, and again whenever records move
+    private ColumnStatistics numVotesStatistics;
+    private long modifiedRecordsSinceAnalyze = 0;
+    // Only one checkpoint is taken at a time
+    private final Object checkpointLock = new Object();
+    // Log sequence number of the last operation the disk holds as of its last checkpoint
+    private volatile long checkpointLsn;
+    // While the log is replayed: the redone operations in log order with the address each insert was appended at,
+    // or REDONE_DELETE for a delete. Null otherwise
+    private Record[] redoneRecords;
+    private long[] redoneAddresses;
+    private int redoneCount;
 
-    public StorageManager(Disk disk, StorageConfiguration storageConfiguration, CrashRecovery recovery, BPlusTree bPlusTree) {
+    public StorageManager(Disk disk, StorageConfiguration storageConfiguration, CrashRecovery recovery, Index bPlusTree) {
+        if (disk.getBlockSize() != storageConfiguration.getPageSize()) {
+            throw new IllegalArgumentException(String.format("Disk block size(%d Bytes) does not match the configured page size(%d Bytes)", disk.getBlockSize(), storageConfiguration.getPageSize()));
+        }
         this.disk = disk;
         this.config = storageConfiguration;
         this.recovery = recovery;
         this.bPlusTree = bPlusTree;
+        this.bufferPool = new BufferPool(disk, config.getBufferPoolSize(), EvictionPolicy.create(config.getEvictionPolicy(), config.getBufferPoolSize()));
+        this.planner = new QueryPlanner(config.getBufferPoolSize(), bPlusTree.isCovering());
+        this.checkpointLsn = disk.getCheckpointLsn();
+        loadExistingBlocks();
+    }
+
+    /**
+     * A file-backed disk may already hold blocks from a previous run.
+     * Pick up where it left off and rebuild the indexes over the live records, skipping any record superseded by a later tombstone.
+     * A B+ tree restored from a clean shutdown already covers them, so only the in-memory indexes are rebuilt.
+     * Records appended after the last checkpoint are dropped first, recover replays them from the log.
+     * A compaction that was checkpointed but not yet copied over the front blocks is finished before anything else.
+     */
+    private void loadExistingBlocks() {
+        boolean isCompactionRedone = disk.getCheckpointCompactedFrom() > 0;
+        if (isCompactionRedone) {
+            // A crash interrupted copying the compacted blocks over the front, which is simply done again
+            copyCompactedBlocks(disk.getCheckpointCompactedFrom(), disk.getCheckpointBlockCount(), disk.getCheckpointLastBlockRecordCount());
+        }
+        boolean isDiscarded = (disk.hasCheckpoint() && discardBlocksAfterCheckpoint()) || isCompactionRedone;
+        int blockCapacity = disk.getBlockCapacity();
+        while (occupiedBlocks < blockCapacity) {
+            Block block = bufferPool.pin(occupiedBlocks + 1, true);
+            int recordCount = block.getRecordCount();
+            bufferPool.unpin(occupiedBlocks + 1, false);
+            if (recordCount == 0) {
+                break;
+            }
+            occupiedBlocks++;
+            numRecords += recordCount;
+        }
+        if (disk.isPersistent() && !disk.hasCheckpoint() && occupiedBlocks == 0) {
+            // An empty checkpoint, so the blocks the buffer pool writes back before the first real one are cut on reopening too
+            disk.writeCheckpoint(checkpointLsn, 0, 0);
+        }
+        rebuildIndexes(occupiedBlocks == 0 || !bPlusTree.isRestored() || isDiscarded);
+    }
+
+    /**
+     * The buffer pool may write blocks back between checkpoints. Cuts every block back to what it held at the last checkpoint,
+     * so the disk is exactly in the state whose log sequence number the checkpoint recorded. Returns whether anything was cut.
+     * Blocks after the checkpoint are appended in order and only those still in the buffer pool at a crash can be missing,
+     * so the scan stops after as many empty blocks in a row as the buffer pool has frames
+     */
+    private boolean discardBlocksAfterCheckpoint() {
+        int checkpointBlocks = disk.getCheckpointBlockCount();
+        int blockCapacity = disk.getBlockCapacity();
+        boolean isDiscarded = false;
+        int emptyBlocks = 0;
+        for (int blockNumber = Math.max(1, checkpointBlocks); blockNumber <= blockCapacity && emptyBlocks < bufferPool.getFrameCount(); blockNumber++) {
+            int keptRecords = blockNumber == checkpointBlocks ? disk.getCheckpointLastBlockRecordCount() : 0;
+            Block block = bufferPool.pin(blockNumber, true);
+            int recordCount = block.getRecordCount();
+            boolean isCut = recordCount > keptRecords;
+            if (isCut) {
+                block.setRecordCount(keptRecords);
+                isDiscarded = true;
+            }
+            bufferPool.unpin(blockNumber, isCut);
+            emptyBlocks = recordCount == 0 ? emptyBlocks + 1 : 0;
+        }
+        return isDiscarded;
+    }
+
+    /**
+     * Clears the B+ tree and zone maps, then reinserts the address of every live record and the ranges of every block
+     */
+    private void rebuildIndexes() {
+        rebuildIndexes(true);
+    }
+
+    /**
+     * Clears the zone maps and the primary key index, then takes the ranges of every block and the address of every live record again.
+     * The B+ tree is bulk loaded from the live records in key order once they are all read
+     *
+     * @param includeBPlusTree Whether to clear and refill the B+ tree as well
+     */
+    private void rebuildIndexes(boolean includeBPlusTree) {
+        HashMap<String, Long> lastTombstones = findLastTombstones();
+        if (includeBPlusTree) {
+            bPlusTree.clear();
+        }
+        zoneMap.clear();
+        primaryKeyIndex.clear();
+        numVotesStatistics = null; // The correlation depends on where the records are
+        IndexEntries entries = new IndexEntries();
+        RecordView record = new RecordView();
+        for (int blockNumber = 1; blockNumber <= occupiedBlocks; blockNumber++) {
+            Block block = bufferPool.pin(blockNumber, true);
+            for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
+                block.getRecordViewAt(recordIndex, record);
+                zoneMap.addRecord(blockNumber, record.getNumVotes(), record.isTombstone());
+                if (!isLive(record, blockNumber, recordIndex, lastTombstones)) {
+                    continue;
+                }
+                // A later copy of the same uuid replaces an earlier one, like insertRecord does
+                primaryKeyIndex.put(record, Address.pack(blockNumber, recordIndex));
+                if (includeBPlusTree) {
+                    entries.add(record.getNumVotes(), Address.pack(blockNumber, recordIndex), record.getAverageRating());
+                }
+            }
+            bufferPool.unpin(blockNumber, false);
+        }
+        if (includeBPlusTree) {
+            entries.addTo(bPlusTree, config.getBulkLoadFillFactor());
+        }
+    }
+
+    /**
+     * Maps the uuid of every deleted record to the position of its last tombstone
+     */
+    private HashMap<String, Long> findLastTombstones() {
+        HashMap<String, Long> lastTombstones = new HashMap<>();
+        RecordView record = new RecordView();
+        for (int blockNumber = 1; blockNumber <= occupiedBlocks; blockNumber++) {
+            Block block = bufferPool.pin(blockNumber, true);
+            for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
+                block.getRecordViewAt(recordIndex, record);
+                if (record.isTombstone()) {
+                    lastTombstones.put(record.getUuid(), getPosition(blockNumber, recordIndex));
+                }
+            }
+            bufferPool.unpin(blockNumber, false);
+        }
+        return lastTombstones;
+    }
+
+    /**
+     * A record is live unless it is a tombstone or a tombstone for it was appended after it
+     */
+    private boolean isLive(RecordView record, int blockNumber, int recordIndex, HashMap<String, Long> lastTombstones) {
+        if (record.isTombstone()) {
+            return false;
+        }
+        if (lastTombstones.isEmpty()) {
+            return true; // Skip decoding the uuid
+        }
+        Long lastTombstone = lastTombstones.get(record.getUuid());
+        return lastTombstone == null || lastTombstone < getPosition(blockNumber, recordIndex);
+    }
+
+    private static long getPosition(int blockNumber, int recordIndex) {
+        return ((long) blockNumber << 32) | recordIndex;
+    }
+
+    /**
+     * Whether the viewed record at the position is the copy of its tconst the primary key index points at.
+     * Tombstones and copies that an update or a delete superseded are not
+     */
+    private boolean isCurrent(RecordView record, int blockNumber, int recordIndex) {
+        return !record.isTombstone() && primaryKeyIndex.get(record) == Address.pack(blockNumber, recordIndex);
+    }
+
+    /**
+     * Whether no records have been written to the disk yet
+     */
+    public boolean isEmpty() {
+        return occupiedBlocks == 0;
+    }
+
+    /**
+     * Force the log, write every dirty block in the buffer pool through to the disk, then flush the index.
+     * The log goes first so that no block reaches the disk before the operations that changed it,
+     * and the index is only marked clean once the records it points at are on disk
+     */
+    public void flush() {
+        recovery.flush();
+        bufferPool.flush();
+        disk.flush();
+        bPlusTree.flush();
+    }
+
+    /**
+     * Fuzzy checkpoint: records on the disk the log sequence number of the last operation its blocks hold,
+     * so recovery only replays the log after it, then lets the log drop the operations up to it.
+     * Writers are only held up while the dirty blocks and index pages are written out; the log and the disk are forced
+     * while they go on, and whatever they append meanwhile is past the recorded blocks and replayed after a crash.
+     * The index is written as of the checkpoint, so reopening after a crash that came before its next change does not
+     * rebuild it.
+     * An in-memory disk is only flushed, as its blocks are lost with the process and the log is all there is
+     */
+    public void checkpoint() {
+        if (!disk.isPersistent()) {
+            flush();
+            return;
+        }
+        synchronized (checkpointLock) {
+            long lsn;
+            int blockCount;
+            int lastBlockRecordCount = 0;
+            synchronized (this) {
+                // Records are appended under this lock together with their log entry, so the blocks hold every entry up to lsn
+                lsn = recovery.getLastLsn();
+                blockCount = occupiedBlocks;
+                if (blockCount > 0) {
+                    lastBlockRecordCount = bufferPool.pin(blockCount).getRecordCount();
+                    bufferPool.unpin(blockCount, false);
+                }
+                bufferPool.flush();
+                // The blocks are forced before the index is marked clean, so a crash before the checkpoint is recorded
+                // leaves blocks past the last one for reopening to cut, which rebuilds the index
+                disk.flush();
+                bPlusTree.flush();
+            }
+            recovery.flush();
+            disk.writeCheckpoint(lsn, blockCount, lastBlockRecordCount);
+            checkpointLsn = lsn;
+            recovery.checkpoint(lsn);
+        }
+    }
+
+    /**
+     * Log sequence number of the last operation the disk holds as of its last checkpoint, 0 if there is none
+     */
+    public long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+
+    /**
+     * Redoes the operations logged after the last checkpoint, which a disk that was not closed cleanly is missing,
+     * then checkpoints so the log can drop them. Nothing is checkpointed if the replay failed before the end of the log
+     */
+    public void recover() {
+        recovery.restore(this);
+        checkpoint();
+    }
+
+    /**
+     * Starts replaying the log. Until finishRedo, redone records are written straight into blocks without being logged again
+     * or running compaction, and the index changes they make are collected to be applied at once.
+     * Nothing else may use the storage meanwhile
+     */
+    void beginRedo() {
+        redoneRecords = new Record[1024];
+        redoneAddresses = new long[1024];
+        redoneCount = 0;
+    }
+
+    /**
+     * Redoes a logged delete, which takes the record out of the B+ tree like deleteRecord does.
+     * Its tombstone is logged right after it and redone as an insert
+     */
+    void redoDelete(Record r) {
+        addRedone(r, REDONE_DELETE);
+    }
+
+    /**
+     * Redoes a logged insert of a record or of a tombstone the way appendRecord does it
+     */
+    void redoInsert(Record r) {
+        Block block = occupiedBlocks == 0 ? null : bufferPool.pin(occupiedBlocks, true);
+        if (block == null || block.isFull()) {
+            if (block != null) {
+                bufferPool.unpin(occupiedBlocks, false);
+            }
+            occupiedBlocks++;
+            block = bufferPool.pinNew(occupiedBlocks, true);
+        }
+        long address = Address.pack(occupiedBlocks, block.getRecordCount());
+        block.insertRecord(r);
+        bufferPool.unpin(occupiedBlocks, true);
+        zoneMap.addRecord(occupiedBlocks, r.getNumVotes(), r.isTombstone());
+        numRecords++;
+        modifiedRecordsSinceAnalyze++;
+        addRedone(r, address);
+    }
+
+    private void addRedone(Record r, long address) {
+        if (redoneCount == redoneRecords.length) {
+            redoneRecords = Arrays.copyOf(redoneRecords, redoneCount * 2);
+            redoneAddresses = Arrays.copyOf(redoneAddresses, redoneCount * 2);
+        }
+        redoneRecords[redoneCount] = r;
+        redoneAddresses[redoneCount] = address;
+        redoneCount++;
+    }
+
+    /**
+     * Applies the index changes of every redone operation at once, then runs compaction if due.
+     * The operations are split by tconst into StorageConfiguration.getRecoveryThreads partitions, each worked out on its own
+     * thread in log order, since operations on different tconsts never affect each other. The partitions are then merged
+     * into the primary key index, and the new B+ tree entries added in key order
+     */
+    void finishRedo() {
+        int partitionCount = config.getRecoveryThreads();
+        boolean[] isIndexed = new boolean[redoneCount];
+        RedoPartition[] partitions = new RedoPartition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new RedoPartition(i, partitionCount, isIndexed);
+        }
+        if (partitionCount == 1) {
+            partitions[0].call();
+        } else {
+            ExecutorService workers = Executors.newFixedThreadPool(partitionCount);
+            try {
+                for (Future<Void> partition : workers.invokeAll(Arrays.asList(partitions))) {
+                    partition.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Could not redo the index changes of the log", e);
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        // Deletes of records from before the checkpoint are found through the primary key index before it changes
+        for (RedoPartition partition : partitions) {
+            for (int i = 0; i < partition.checkpointedDeleteCount; i++) {
+                Record r = redoneRecords[partition.checkpointedDeletes[i]];
+                Address deleted = findAddress(r);
+                if (deleted != null) {
+                    bPlusTree.delete(r.getNumVotes(), deleted);
+                }
+            }
+        }
+        for (RedoPartition partition : partitions) {
+            for (Map.Entry<String, Integer> latest : partition.latestInserts.entrySet()) {
+                int index = latest.getValue();
+                if (index == RedoPartition.TOMBSTONED) {
+                    primaryKeyIndex.remove(latest.getKey());
+                } else if (index >= 0) {
+                    primaryKeyIndex.put(latest.getKey(), redoneAddresses[index]);
+                }
+            }
+        }
+        IndexEntries redoneEntries = new IndexEntries();
+        for (int i = 0; i < redoneCount; i++) {
+            if (isIndexed[i]) {
+                Record r = redoneRecords[i];
+                redoneEntries.add(r.getNumVotes(), redoneAddresses[i], r.getAverageRating());
+            }
+        }
+        redoneEntries.addTo(bPlusTree, config.getBulkLoadFillFactor());
+        redoneRecords = null;
+        redoneAddresses = null;
+        redoneCount = 0;
+        this.checkAndRunCompaction();
+    }
+
+    /**
+     * The redone operations on the tconsts of one partition, replayed in log order against the primary key index as it was
+     * at the checkpoint, which no partition changes. Marks the inserts that stay in the B+ tree, and keeps the last insert
+     * of every tconst and the deletes of records from before the checkpoint for finishRedo to apply
+     */
+    private class RedoPartition implements Callable<Void> {
+        // Values of latestInserts other than the index of an insert
+        static final int TOMBSTONED = -1;
+        static final int CHECKPOINTED_DELETED = -2;
+
+        private final int partition;
+        private final int partitionCount;
+        private final boolean[] isIndexed;
+        // tconst -> index of its last redone insert, or why it has none
+        final HashMap<String, Integer> latestInserts = new HashMap<>();
+        int[] checkpointedDeletes = new int[16];
+        int checkpointedDeleteCount = 0;
+
+        RedoPartition(int partition, int partitionCount, boolean[] isIndexed) {
+            this.partition = partition;
+            this.partitionCount = partitionCount;
+            this.isIndexed = isIndexed;
+        }
+
+        public Void call() {
+            for (int i = 0; i < redoneCount; i++) {
+                Record r = redoneRecords[i];
+                if (Math.floorMod(r.getUuid().hashCode(), partitionCount) != partition) {
+                    continue;
+                }
+                if (redoneAddresses[i] != REDONE_DELETE) {
+                    latestInserts.put(r.getUuid(), r.isTombstone() ? TOMBSTONED : i);
+                    isIndexed[i] = !r.isTombstone();
+                    continue;
+                }
+                Integer latest = latestInserts.get(r.getUuid());
+                if (latest == null) {
+                    // Deletes a record from before the checkpoint, if the primary key index points at one
+                    if (primaryKeyIndex.get(r.getUuid()) != PrimaryKeyIndex.NOT_FOUND) {
+                        if (checkpointedDeleteCount == checkpointedDeletes.length) {
+                            checkpointedDeletes = Arrays.copyOf(checkpointedDeletes, checkpointedDeleteCount * 2);
+                        }
+                        checkpointedDeletes[checkpointedDeleteCount++] = i;
+                        latestInserts.put(r.getUuid(), CHECKPOINTED_DELETED);
+                    }
+                } else if (latest >= 0 && (int) redoneRecords[latest].getNumVotes() == (int) r.getNumVotes()) {
+                    isIndexed[latest] = false;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checkpoint, then release the log, the underlying disk and the index
+     */
+    public void close() {
+        checkpoint();
+        recovery.close();
+        disk.close();
+        bPlusTree.close();
     }
 
     /**
      * We do an append only log which is performant as it makes use of sequential writes.
+     * Several threads may insert, update, delete and look up by primary key at once: the operations are appended to the log,
+     * their records to the blocks and the indexes changed under the lock on the storage, so all are in the same order,
+     * but waiting for the log to be forced happens after releasing it, so writers share a group commit instead of queueing
+     * behind each other. The scans and queries by numVotes expect no writer to run alongside them
      *
      * @param record Record to be inserted
      */
     public void insertRecord(Record r) {
-        recovery.logOperation(CrashRecovery.OPERATION.INSERT, r);
-        int blockNumber;
-        int recordOffsetInBlock;
+        long lsn;
+        synchronized (this) {
+            lsn = recovery.appendOperation(CrashRecovery.OPERATION.INSERT, r);
+            appendRecord(r);
+        }
+        finishWrite(lsn);
+    }
+
+    /**
+     * Waits for the log to be forced up to lsn, then compacts and checkpoints if due.
+     * Called after releasing the lock on the storage, as both take the checkpoint lock before it
+     */
+    private void finishWrite(long lsn) {
+        recovery.awaitDurable(lsn);
+        // Compaction moves records, so only run it once the indexes point at the written records
+        this.checkAndRunCompaction();
+        checkpointIfDue(lsn);
+    }
 
-        if (occupiedBlocks == 0) {
-            Block block = new Block();
+    /**
+     * Checkpoints a file-backed disk once the log grew by the checkpoint interval since the last checkpoint,
+     * so recovery never has more than that to replay
+     */
+    private void checkpointIfDue(long lsn) {
+        long interval = config.getCheckpointInterval();
+        if (!disk.isPersistent() || interval == 0 || lsn - checkpointLsn < interval) {
+            return;
+        }
+        synchronized (checkpointLock) {
+            // Another inserter may have taken it while this one waited
+            if (lsn - checkpointLsn >= interval) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Appends an already logged record to the last block and indexes it
+     */
+    private void appendRecord(Record r) {
+        Block block = occupiedBlocks == 0 ? null : bufferPool.pin(occupiedBlocks);
+        if (block == null || block.isFull()) {
+            if (block != null) {
+                bufferPool.unpin(occupiedBlocks, false);
+            }
             occupiedBlocks++;
-            recordOffsetInBlock = 0; // New block, so the offset is 0
-            block.insertRecord(r);
-            disk.writeBlock(1, block);
-            blockNumber = occupiedBlocks;
+            block = bufferPool.pinNew(occupiedBlocks); // New block, so the offset is 0
+        }
+        int blockNumber = occupiedBlocks;
+        int recordOffsetInBlock = block.getRecordCount();
+        block.insertRecord(r);
+        bufferPool.unpin(blockNumber, true);
+        zoneMap.addRecord(blockNumber, r.getNumVotes(), r.isTombstone());
+        numRecords++;
+        modifiedRecordsSinceAnalyze++; // A tombstone counts as the delete it stands for
+
+        // Update b tree. Tombstones are never looked up, so only live records are indexed
+        if (!r.isTombstone()) {
+            bPlusTree.insert(r.getNumVotes(), Address.pack(blockNumber, recordOffsetInBlock), r.getAverageRating());
+            primaryKeyIndex.put(r.getUuid(), Address.pack(blockNumber, recordOffsetInBlock));
         } else {
-            Block block = disk.getBlock(occupiedBlocks);
-            if (block.isFull()) {
-                block = new Block();
-                occupiedBlocks++;
-                recordOffsetInBlock = 0; // New block, so the offset is 0
-                block.insertRecord(r);
-                disk.writeBlock(occupiedBlocks, block);
-                blockNumber = occupiedBlocks;
-            } else {
-                recordOffsetInBlock = block.getRecordCount();
-                blockNumber = occupiedBlocks;
+            primaryKeyIndex.remove(r.getUuid());
+        }
+    }
+
+    /**
+     * Loads many records at once. Records are packed into new blocks, the B+ tree is built bottom-up from the sorted
+     * (numVotes, Address) pairs, and a single bulk load marker is logged instead of one entry per record.
+     * A checkpoint follows, so recovery never has to redo the new blocks: a crash before it undoes the whole load.
+     * An in-memory disk loses its blocks with the process, so there every record is logged as an insert to be redone instead.
+     *
+     * @param records Records to be inserted
+     */
+    public void bulkLoad(Iterator<Record> records) {
+        int firstBlockNumber = occupiedBlocks + 1;
+        IndexEntries entries = new IndexEntries();
+        boolean isLoggingRecords = !disk.isPersistent();
+        long lsn = 0;
+
+        Block block = null;
+        try {
+            while (records.hasNext()) {
+                Record r = records.next();
+                if (block == null || block.isFull()) {
+                    if (block != null) {
+                        bufferPool.unpin(occupiedBlocks, true);
+                        block = null;
+                    }
+                    block = bufferPool.pinNew(occupiedBlocks + 1, true);
+                    occupiedBlocks++;
+                }
+                int recordOffsetInBlock = block.getRecordCount();
                 block.insertRecord(r);
-                disk.writeBlock(occupiedBlocks, block);
+                if (isLoggingRecords) {
+                    lsn = recovery.appendOperation(CrashRecovery.OPERATION.INSERT, r);
+                }
+                zoneMap.addRecord(occupiedBlocks, r.getNumVotes(), r.isTombstone());
+                numRecords++;
+                modifiedRecordsSinceAnalyze++;
+
+                long address = Address.pack(occupiedBlocks, recordOffsetInBlock);
+                entries.add(r.getNumVotes(), address, r.getAverageRating());
+                primaryKeyIndex.put(r.getUuid(), address);
+            }
+        } finally {
+            // The records written so far are indexed, logged and checkpointed even if reading the next one failed,
+            // so the blocks, the indexes and the log still agree
+            if (block != null) {
+                bufferPool.unpin(occupiedBlocks, true);
+            }
+            if (occupiedBlocks >= firstBlockNumber) {
+                if (isLoggingRecords) {
+                    recovery.awaitDurable(lsn);
+                } else {
+                    recovery.logBulkLoad(firstBlockNumber, occupiedBlocks);
+                }
+                entries.addTo(bPlusTree, config.getBulkLoadFillFactor());
+                checkpoint();
             }
         }
-        numRecords++;
-        this.checkAndRunCompaction();
-
-        // Update b tree
-        Address address = new Address(blockNumber, recordOffsetInBlock);
-        bPlusTree.insert(r.getNumVotes(), address);
+        if (occupiedBlocks >= firstBlockNumber) {
+            this.checkAndRunCompaction();
+        }
     }
 
     /**
@@ -67,11 +596,111 @@ public class StorageManager {
      * @param record Record to delete
      */
     public void deleteRecord(Record r) {
-        recovery.logOperation(CrashRecovery.OPERATION.DELETE, r);
+        long lsn;
+        synchronized (this) {
+            Address address = findAddress(r);
+            if (address != null) {
+                bPlusTree.delete(r.getNumVotes(), address);
+            }
+            lsn = appendTombstone(r);
+        }
+        finishWrite(lsn);
+    }
+
+    /**
+     * Logs the delete and appends a tombstone for the record, under the lock on the storage.
+     * The index entry must already be gone. Returns the LSN to await
+     */
+    private long appendTombstone(Record r) {
+        recovery.appendOperation(CrashRecovery.OPERATION.DELETE, r);
         Record recordTombstone = new Record(r.getUuid(), r.getAverageRating(), r.getNumVotes(), (short) 1);
-        insertRecord(recordTombstone);
-        bPlusTree.deleteKey(r.getNumVotes());
-        this.checkAndRunCompaction();
+        long lsn = recovery.appendOperation(CrashRecovery.OPERATION.INSERT, recordTombstone);
+        appendRecord(recordTombstone);
+        return lsn;
+    }
+
+    /**
+     * Looks up the address of a live record through the primary key index.
+     * Returns null unless the record there has the same numVotes, which its B+ tree entry is filed under
+     */
+    private Address findAddress(Record r) {
+        long address = primaryKeyIndex.get(r.getUuid());
+        if (address == PrimaryKeyIndex.NOT_FOUND || (int) readRecord(address).getNumVotes() != (int) r.getNumVotes()) {
+            return null;
+        }
+        return Address.unpack(address);
+    }
+
+    /**
+     * Reads a copy of the record at the packed address, under the lock on the storage
+     */
+    private Record readRecord(long address) {
+        Block block = bufferPool.pin(Address.idOf(address));
+        Record record = block.getRecordViewAt(Address.offsetOf(address), new RecordView()).toRecord();
+        bufferPool.unpin(Address.idOf(address), false);
+        return record;
+    }
+
+    /**
+     * Obtain a live record by its primary key through the primary key index, reading only the block holding it
+     *
+     * @param tconst The primary key of the record
+     * @return A copy of the record, or null if there is no live record with that key
+     */
+    public Record getByPrimaryKey(String tconst) {
+        synchronized (this) {
+            long address = primaryKeyIndex.get(tconst);
+            return address == PrimaryKeyIndex.NOT_FOUND ? null : readRecord(address);
+        }
+    }
+
+    /**
+     * Replaces the averageRating and numVotes of a live record. Like any update this is a delete and an insert:
+     * a tombstone displaces the current record and the updated record is appended, and both indexes then point at it.
+     * Both happen under one hold of the lock on the storage, so no other thread sees the record gone in between
+     *
+     * @param tconst        The primary key of the record
+     * @param averageRating The new averageRating
+     * @param numVotes      The new numVotes
+     * @return Whether there was a live record with that key
+     */
+    public boolean updateByPrimaryKey(String tconst, float averageRating, int numVotes) {
+        long lsn;
+        synchronized (this) {
+            long address = primaryKeyIndex.get(tconst);
+            if (address == PrimaryKeyIndex.NOT_FOUND) {
+                return false;
+            }
+            Record record = readRecord(address);
+            bPlusTree.delete(record.getNumVotes(), Address.unpack(address));
+            appendTombstone(record);
+            Record updatedRecord = new Record(record.getUuid(), averageRating, numVotes, (short) 0);
+            lsn = recovery.appendOperation(CrashRecovery.OPERATION.INSERT, updatedRecord);
+            appendRecord(updatedRecord);
+        }
+        finishWrite(lsn);
+        return true;
+    }
+
+    /**
+     * Deletes a live record by its primary key, removing it from both indexes and appending its tombstone
+     *
+     * @param tconst The primary key of the record
+     * @return Whether there was a live record with that key
+     */
+    public boolean deleteByPrimaryKey(String tconst) {
+        long lsn;
+        synchronized (this) {
+            long address = primaryKeyIndex.get(tconst);
+            if (address == PrimaryKeyIndex.NOT_FOUND) {
+                return false;
+            }
+            Record record = readRecord(address);
+            bPlusTree.delete(record.getNumVotes(), Address.unpack(address));
+            lsn = appendTombstone(record);
+        }
+        finishWrite(lsn);
+        return true;
     }
 
     /**
@@ -81,31 +710,17 @@ public class StorageManager {
      */
     public void retrieveRecordsByNumVotes(int numVotes) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
 
-        ArrayList<Address> addresses = bPlusTree.getRecordsWithKey(numVotes);
+        IndexCursor cursor = bPlusTree.scanRange(numVotes, numVotes, Long.MAX_VALUE);
         HashSet<Integer> accessedBlocks = new HashSet<>();
-        double averageRatingSum = 0;
-
-        for (Address address : addresses) {
-            // Use the block ID directly from the address
-            int blockId = address.returnId();
-
-            // Add newly accessed block to the set
-            accessedBlocks.add(blockId);
-
-            // Retrieve the block and the specific record within the block
-            Block block = disk.getBlock(blockId);
-            Record recordObtained = block.getRecordAt(address.getOffset());
-
-            averageRatingSum += recordObtained.getAverageRating();
-        }
+        DoubleSummaryStatistics ratings = collectAverageRatings(cursor, accessedBlocks);
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        double averageRating = !addresses.isEmpty() ? averageRatingSum / addresses.size() : 0;
-
-        printStatistics("B+ Tree", accessedBlocks.size(), averageRating, duration);
+        printStatistics(getIndexMethodName(), accessedBlocks.size(), bPlusTree.getNodeAccessCount(), null, ratings.getAverage(), duration);
     }
 
     /**
@@ -115,22 +730,30 @@ public class StorageManager {
      */
     public void linearScanByNumVotes(int numVotes) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
 
         HashSet<Integer> accessedBlocks = new HashSet<>();
         double averageRatingSum = 0;
         int recordCounter = 0;
+        int skippedBlocks = 0;
+        RecordView recordObtained = new RecordView();
 
         for (int blockId = 1; blockId <= occupiedBlocks; blockId++) {
-            Block block = disk.getBlock(blockId);
+            if (!zoneMap.mayContainNumVotes(blockId, numVotes, numVotes)) {
+                skippedBlocks++;
+                continue;
+            }
+            Block block = bufferPool.pin(blockId, true);
             accessedBlocks.add(blockId);
 
             for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
-                Record recordObtained = block.getRecordAt(recordIndex);
-                if (!recordObtained.isTombstone() && recordObtained.getNumVotes() == numVotes) {
+                block.getRecordViewAt(recordIndex, recordObtained);
+                if (recordObtained.getNumVotes() == numVotes && isCurrent(recordObtained, blockId, recordIndex)) {
                     averageRatingSum += recordObtained.getAverageRating();
                     recordCounter++;
                 }
             }
+            bufferPool.unpin(blockId, false);
         }
 
         long endTime = System.currentTimeMillis();
@@ -138,7 +761,7 @@ public class StorageManager {
 
         double averageRating = recordCounter > 0 ? averageRatingSum / recordCounter : 0;
 
-        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), averageRating, duration);
+        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), null, skippedBlocks, averageRating, duration);
     }
 
     /**
@@ -149,31 +772,314 @@ public class StorageManager {
      */
     public void retrieveRecordsByNumVotesRange(int min, int max) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
 
-        ArrayList<Address> addresses = bPlusTree.getRecordsWithKeyInRange(min, max);
+        // Records are read as the cursor walks the leaves, so no list of every matching address is built
+        IndexCursor cursor = bPlusTree.scanRange(min, max, Long.MAX_VALUE);
         HashSet<Integer> accessedBlocks = new HashSet<>();
+        DoubleSummaryStatistics ratings = collectAverageRatings(cursor, accessedBlocks);
+
+        long endTime = System.currentTimeMillis();
+        long duration = endTime - startTime;
+
+        printStatistics(getIndexMethodName(), accessedBlocks.size(), bPlusTree.getNodeAccessCount(), null, ratings.getAverage(), duration);
+    }
+
+    /**
+     * Obtain the records with numVotes in the range like retrieveRecordsByNumVotesRange, but as a bitmap heap scan:
+     * every matching address is gathered from the B+ tree and sorted first, so each block holding a match is read once,
+     * in block order, and all of its matching records are read while it is pinned
+     *
+     * @param min The minimum numVotes value in the range
+     * @param max The maximum numVotes value in the range
+     */
+    public void retrieveRecordsByNumVotesRangeSorted(int min, int max) {
+        long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
+
+        long[] addresses = collectSortedAddresses(bPlusTree.scanRange(min, max, Long.MAX_VALUE));
+        int accessedBlocks = 0;
         double averageRatingSum = 0;
+        RecordView recordObtained = new RecordView();
+
+        for (int i = 0; i < addresses.length; ) {
+            int blockId = Address.idOf(addresses[i]);
+            Block block = bufferPool.pin(blockId, true);
+            accessedBlocks++;
+            // Sorting put every matching record of the block next to each other
+            for (; i < addresses.length && Address.idOf(addresses[i]) == blockId; i++) {
+                averageRatingSum += block.getRecordViewAt(Address.offsetOf(addresses[i]), recordObtained).getAverageRating();
+            }
+            bufferPool.unpin(blockId, false);
+        }
 
-        for (Address address : addresses) {
+        long endTime = System.currentTimeMillis();
+        long duration = endTime - startTime;
+
+        double averageRating = addresses.length > 0 ? averageRatingSum / addresses.length : 0;
+
+        printStatistics("B+ Tree Sorted Block Fetch", accessedBlocks, bPlusTree.getNodeAccessCount(), null, averageRating, duration);
+    }
+
+    /**
+     * Drains the cursor into an array of packed addresses sorted by block, then by position in the block.
+     * The block id is in the high bits of a packed address, so sorting the packed values sorts by block
+     */
+    private static long[] collectSortedAddresses(IndexCursor cursor) {
+        long[] addresses = new long[64];
+        int count = 0;
+        while (cursor.hasNext()) {
+            if (count == addresses.length) {
+                addresses = Arrays.copyOf(addresses, count * 2);
+            }
+            addresses[count++] = cursor.nextPackedAddress();
+        }
+        addresses = Arrays.copyOf(addresses, count);
+        Arrays.sort(addresses);
+        return addresses;
+    }
+
+    /**
+     * Obtain the average, minimum and maximum averageRating of the records with numVotes in the range.
+     * With a covering index the ratings are read from the index leaves, so no data block is read at all
+     *
+     * @param min The minimum numVotes value in the range
+     * @param max The maximum numVotes value in the range
+     * @return The count, average, minimum and maximum of the ratings
+     */
+    public DoubleSummaryStatistics aggregateAverageRatingByNumVotesRange(int min, int max) {
+        long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
+
+        IndexCursor cursor = bPlusTree.scanRange(min, max, Long.MAX_VALUE);
+        HashSet<Integer> accessedBlocks = new HashSet<>();
+        DoubleSummaryStatistics ratings = collectAverageRatings(cursor, accessedBlocks);
+
+        long endTime = System.currentTimeMillis();
+        long duration = endTime - startTime;
+
+        if (ratings.getCount() > 0) {
+            System.out.println(String.format("Records: %d, Min Rating: %.1f, Max Rating: %.1f", ratings.getCount(), ratings.getMin(), ratings.getMax()));
+        }
+        printStatistics(getIndexMethodName(), accessedBlocks.size(), bPlusTree.getNodeAccessCount(), null, ratings.getAverage(), duration);
+        return ratings;
+    }
+
+    /**
+     * Takes the averageRating of every record the cursor returns. A covering index returns it together with the address,
+     * otherwise the record is read from its block, which is added to accessedBlocks
+     */
+    private DoubleSummaryStatistics collectAverageRatings(IndexCursor cursor, HashSet<Integer> accessedBlocks) {
+        DoubleSummaryStatistics ratings = new DoubleSummaryStatistics();
+        boolean isIndexOnly = bPlusTree.isCovering();
+        RecordView recordObtained = new RecordView();
+
+        while (cursor.hasNext()) {
+            long address = cursor.nextPackedAddress();
+            if (isIndexOnly) {
+                ratings.accept(cursor.getAverageRating());
+                continue;
+            }
             // Use the block ID directly from the address
-            int blockId = address.returnId();
+            int blockId = Address.idOf(address);
 
             // Add newly accessed block to the set
             accessedBlocks.add(blockId);
 
             // Retrieve the block and the specific record within the block
-            Block block = disk.getBlock(blockId);
-            Record recordObtained = block.getRecordAt(address.getOffset());
+            Block block = bufferPool.pin(blockId);
+            ratings.accept(block.getRecordViewAt(Address.offsetOf(address), recordObtained).getAverageRating());
+            bufferPool.unpin(blockId, false);
+        }
+        return ratings;
+    }
+
+    private String getIndexMethodName() {
+        return bPlusTree.isCovering() ? "Covering B+ Tree" : "B+ Tree";
+    }
+
+    /**
+     * Obtain the k records with the most votes by walking the B+ tree backwards from its last leaf.
+     * Only the last k index entries and the blocks holding their records are read, instead of scanning and sorting every record
+     *
+     * @param k The number of records to retrieve
+     * @return The records, by numVotes descending
+     */
+    public ArrayList<Record> retrieveTopRecordsByNumVotes(int k) {
+        long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
+
+        IndexCursor cursor = bPlusTree.scanRangeDescending(Integer.MIN_VALUE, Integer.MAX_VALUE, k);
+        ArrayList<Record> records = new ArrayList<>();
+        HashSet<Integer> accessedBlocks = new HashSet<>();
+        double averageRatingSum = 0;
+        RecordView recordObtained = new RecordView();
+
+        while (cursor.hasNext()) {
+            long address = cursor.nextPackedAddress();
+            int blockId = Address.idOf(address);
+            accessedBlocks.add(blockId);
 
+            Block block = bufferPool.pin(blockId);
+            block.getRecordViewAt(Address.offsetOf(address), recordObtained);
             averageRatingSum += recordObtained.getAverageRating();
+            records.add(recordObtained.toRecord());
+            bufferPool.unpin(blockId, false);
         }
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        double averageRating = !addresses.isEmpty() ? averageRatingSum / addresses.size() : 0;
+        double averageRating = !records.isEmpty() ? averageRatingSum / records.size() : 0;
 
-        printStatistics("B+ Tree", accessedBlocks.size(), averageRating, duration);
+        printStatistics("B+ Tree", accessedBlocks.size(), bPlusTree.getNodeAccessCount(), null, averageRating, duration);
+        return records;
+    }
+
+    /**
+     * Count the records with numVotes in the range from the B+ tree alone, without reading any data block.
+     * The heap B+ tree answers from the record counts in its parent nodes, reading one path per end of the range
+     *
+     * @param min The minimum numVotes value in the range
+     * @param max The maximum numVotes value in the range
+     * @return The number of records in the range
+     */
+    public long countRecordsByNumVotesRange(int min, int max) {
+        long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
+
+        long count = bPlusTree.countRange(min, max);
+
+        long endTime = System.currentTimeMillis();
+        long duration = endTime - startTime;
+
+        System.out.println(String.format("Records with numVotes in [%d, %d]: %d", min, max, count));
+        printStatistics("B+ Tree", 0, bPlusTree.getNodeAccessCount(), null, null, duration);
+        return count;
+    }
+
+    /**
+     * Obtain the numVotes value below which the given fraction of the records fall, by the nearest-rank method.
+     * E.g. 0.5 gives the median and 0.99 the 99th percentile
+     *
+     * @param fraction The percentile as a fraction between 0 and 1
+     * @return The numVotes value at that percentile
+     */
+    public int retrieveNumVotesPercentile(double fraction) {
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1");
+        }
+        long total = bPlusTree.countRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        if (total == 0) {
+            throw new IllegalStateException("No records indexed");
+        }
+        long rank = Math.max(0, (long) Math.ceil(fraction * total) - 1);
+        return bPlusTree.selectKey(rank);
+    }
+
+    /**
+     * Reads the B+ tree once in key order and keeps the statistics of the numVotes column the planner estimates from:
+     * an equi-depth histogram, the number of distinct values and the correlation between numVotes and record position
+     *
+     * @return The new statistics
+     */
+    public ColumnStatistics analyzeNumVotes() {
+        IndexCursor cursor = bPlusTree.scanRange(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+        numVotesStatistics = ColumnStatistics.analyze(cursor, Block.getMaxRecordsPerBlock(config.getPageSize()), ColumnStatistics.DEFAULT_BUCKET_COUNT);
+        modifiedRecordsSinceAnalyze = 0;
+        return numVotesStatistics;
+    }
+
+    /**
+     * Returns the statistics of the numVotes column. They are gathered again first if there are none yet,
+     * or if enough records were inserted or deleted since that they may no longer describe the column
+     */
+    public ColumnStatistics getNumVotesStatistics() {
+        if (numVotesStatistics == null
+                || modifiedRecordsSinceAnalyze > ANALYZE_THRESHOLD + ANALYZE_SCALE_FACTOR * numVotesStatistics.getRecordCount()) {
+            analyzeNumVotes();
+        }
+        return numVotesStatistics;
+    }
+
+    /**
+     * Estimates the cost of reading the records with numVotes in the range through the B+ tree in key order,
+     * through the B+ tree in block order and by a linear scan, without running any of them
+     *
+     * @param min The minimum numVotes value in the range
+     * @param max The maximum numVotes value in the range
+     * @return The estimates and the cheapest method
+     */
+    public QueryPlan planNumVotesRange(int min, int max) {
+        ColumnStatistics statistics = getNumVotesStatistics();
+        // The zone maps are in memory, so the blocks a linear scan would read are known exactly
+        int candidateBlocks = 0;
+        long candidateRecords = 0;
+        for (int blockId = 1; blockId <= occupiedBlocks; blockId++) {
+            if (zoneMap.mayContainNumVotes(blockId, min, max)) {
+                candidateBlocks++;
+                candidateRecords += zoneMap.getRecordCount(blockId);
+            }
+        }
+        return planner.plan(statistics, min, max, occupiedBlocks, candidateBlocks, candidateRecords);
+    }
+
+    /**
+     * Obtain the records with numVotes in the range by whichever method planNumVotesRange estimates to be the cheapest.
+     * The plan is printed before the statistics of the method that ran
+     *
+     * @param min The minimum numVotes value in the range
+     * @param max The maximum numVotes value in the range
+     * @return The plan that was run
+     */
+    public QueryPlan queryRecordsByNumVotesRange(int min, int max) {
+        QueryPlan plan = planNumVotesRange(min, max);
+        System.out.println(plan);
+        switch (plan.getMethod()) {
+            case INDEX_SCAN:
+                retrieveRecordsByNumVotesRange(min, max);
+                break;
+            case SORTED_INDEX_SCAN:
+                retrieveRecordsByNumVotesRangeSorted(min, max);
+                break;
+            case FULL_SCAN:
+                linearScanByNumVotesRange(min, max);
+                break;
+        }
+        return plan;
+    }
+
+    /**
+     * Streams the records with numVotes in the range to action in numVotes order, reading the B+ tree one leaf at a time.
+     * Stops after limit records. The RecordView passed to action is reused and only valid during the call.
+     *
+     * @param min    The minimum numVotes value in the range
+     * @param max    The maximum numVotes value in the range
+     * @param limit  The maximum number of records to stream
+     * @param action Called with every record
+     * @return The number of records streamed
+     */
+    public long scanRecordsByNumVotesRange(int min, int max, long limit, Consumer<RecordView> action) {
+        IndexCursor cursor = bPlusTree.scanRange(min, max, limit);
+        RecordView record = new RecordView();
+        long recordCounter = 0;
+        while (cursor.hasNext()) {
+            long address = cursor.nextPackedAddress();
+            int blockId = Address.idOf(address);
+            Block block = bufferPool.pin(blockId);
+            try {
+                action.accept(block.getRecordViewAt(Address.offsetOf(address), record));
+            } finally {
+                bufferPool.unpin(blockId, false);
+            }
+            recordCounter++;
+        }
+        return recordCounter;
     }
 
     /**
@@ -184,22 +1090,30 @@ public class StorageManager {
      */
     public void linearScanByNumVotesRange(int min, int max) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
 
         HashSet<Integer> accessedBlocks = new HashSet<>();
         double averageRatingSum = 0;
         int recordCounter = 0;
+        int skippedBlocks = 0;
+        RecordView recordObtained = new RecordView();
 
         for (int blockId = 1; blockId <= occupiedBlocks; blockId++) {
-            Block block = disk.getBlock(blockId);
+            if (!zoneMap.mayContainNumVotes(blockId, min, max)) {
+                skippedBlocks++;
+                continue;
+            }
+            Block block = bufferPool.pin(blockId, true);
             accessedBlocks.add(blockId);
 
             for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
-                Record recordObtained = block.getRecordAt(recordIndex);
-                if (!recordObtained.isTombstone() && recordObtained.getNumVotes() >= min && recordObtained.getNumVotes() <= max) {
+                block.getRecordViewAt(recordIndex, recordObtained);
+                if (recordObtained.getNumVotes() >= min && recordObtained.getNumVotes() <= max && isCurrent(recordObtained, blockId, recordIndex)) {
                     averageRatingSum += recordObtained.getAverageRating();
                     recordCounter++;
                 }
             }
+            bufferPool.unpin(blockId, false);
         }
 
         long endTime = System.currentTimeMillis();
@@ -207,7 +1121,7 @@ public class StorageManager {
 
         double averageRating = recordCounter > 0 ? averageRatingSum / recordCounter : 0;
 
-        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), averageRating, duration);
+        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), null, skippedBlocks, averageRating, duration);
     }
 
     /**
@@ -217,26 +1131,39 @@ public class StorageManager {
      */
     public void deleteRecordsByNumVotes(int numVotes) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
+        bPlusTree.resetStatistics();
 
-        ArrayList<Address> addresses = bPlusTree.getRecordsWithKey(numVotes);
         HashSet<Integer> accessedBlocks = new HashSet<>();
+        RecordView recordToDelete = new RecordView();
 
-        for (Address address : addresses) {
-            int blockId = address.returnId();
-            accessedBlocks.add(blockId);
+        long lsn = 0;
+        synchronized (this) {
+            ArrayList<Address> addresses = bPlusTree.getRecordsWithKey(numVotes);
+            // The whole posting list goes in one step, then each record gets its tombstone
+            bPlusTree.deleteKey(numVotes);
+            for (Address address : addresses) {
+                int blockId = address.returnId();
+                accessedBlocks.add(blockId);
 
-            Block block = disk.getBlock(blockId);
-            Record recordToDelete = block.getRecordAt(address.getOffset());
-            if (!recordToDelete.isTombstone() && recordToDelete.getNumVotes() == numVotes) {
-                deleteRecord(recordToDelete);
+                Block block = bufferPool.pin(blockId);
+                block.getRecordViewAt(address.getOffset(), recordToDelete);
+                Record record = recordToDelete.isTombstone() || recordToDelete.getNumVotes() != numVotes ? null : recordToDelete.toRecord();
+                bufferPool.unpin(blockId, false);
+                if (record != null) {
+                    lsn = appendTombstone(record);
+                }
             }
         }
+        if (lsn != 0) {
+            finishWrite(lsn);
+        }
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
-        System.out.println("Number of nodes deleted = "+this.bPlusTree.deletedCount);
+        System.out.println("Number of nodes deleted = "+this.bPlusTree.getDeletedNodeCount());
         this.bPlusTree.bPlusTreeStats();
-        printStatistics("B+ Tree", accessedBlocks.size(), null, duration);
+        printStatistics("B+ Tree", accessedBlocks.size(), bPlusTree.getNodeAccessCount(), null, null, duration);
     }
 
     /**
@@ -247,95 +1174,242 @@ public class StorageManager {
      */
     public void linearScanDeleteByNumVotes(int numVotes) {
         long startTime = System.currentTimeMillis();
+        bufferPool.resetStatistics();
         HashSet<Integer> accessedBlocks = new HashSet<>();
+        int skippedBlocks = 0;
+        RecordView recordToDelete = new RecordView();
 
-        for (int blockId = 1; blockId <= occupiedBlocks; blockId++) {
-            Block block = disk.getBlock(blockId);
-            accessedBlocks.add(blockId);
+        long lsn = 0;
+        synchronized (this) {
+            // Compaction waits until the scan is done, so the blocks do not move under it
+            for (int blockId = 1; blockId <= occupiedBlocks; blockId++) {
+                if (!zoneMap.mayContainNumVotes(blockId, numVotes, numVotes)) {
+                    skippedBlocks++;
+                    continue;
+                }
+                Block block = bufferPool.pin(blockId, true);
+                accessedBlocks.add(blockId);
 
-            for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
-                Record recordToDelete = block.getRecordAt(recordIndex);
-                if (!recordToDelete.isTombstone() && recordToDelete.getNumVotes() == numVotes) {
-                    deleteRecord(recordToDelete);
+                for (int recordIndex = 0; recordIndex < block.getRecordCount(); recordIndex++) {
+                    block.getRecordViewAt(recordIndex, recordToDelete);
+                    if (recordToDelete.getNumVotes() == numVotes && isCurrent(recordToDelete, blockId, recordIndex)) {
+                        Record record = recordToDelete.toRecord();
+                        bPlusTree.delete(record.getNumVotes(), new Address(blockId, recordIndex));
+                        lsn = appendTombstone(record);
+                    }
                 }
+                bufferPool.unpin(blockId, false);
             }
         }
+        if (lsn != 0) {
+            finishWrite(lsn);
+        }
 
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
 
-        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), null, duration);
+        printStatistics("Brute-force Linear Scan", accessedBlocks.size(), null, skippedBlocks, null, duration);
     }
 
-//    public void updateRecordByPrimaryKey() {
-//        // Call readRecordByPrimaryKey
-//        // Call deleteRecord
-//        // Call insertRecord with the updated properties
-//    }
-
     /**
      * For simplicity assume all blocks are full
      */
     public float getDiskUtilization () {
-        return (float) (occupiedBlocks * Block.BLOCK_BYTE_SIZE) / Disk.DISK_BYTE_SIZE;
+        return (float) ((long) occupiedBlocks * config.getPageSize()) / Disk.DISK_BYTE_SIZE;
     }
 
     /**
      * Check if disk utilization is over 90%.
-     * If so delete tombstones and reclaim space to reduce fragmentation
+     * If so delete tombstones and reclaim space to reduce fragmentation.
+     * Holds up checkpoints and writers until done, so no checkpoint records blocks halfway through it
      */
     private void checkAndRunCompaction () {
         if (getDiskUtilization() < this.config.getCompactionThreshold()) {
             return;
         }
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                // Another thread may have compacted while this one waited
+                if (getDiskUtilization() < this.config.getCompactionThreshold()) {
+                    return;
+                }
+                if (disk.isPersistent()) {
+                    compactIntoNewBlocks();
+                } else {
+                    compactInPlace();
+                }
+                // Every record may have moved
+                rebuildIndexes();
+            }
+        }
+    }
+
+    /**
+     * Moves the live records of an in-memory disk towards the front. Its blocks are lost with the process anyway,
+     * so there is nothing a crash halfway through could leave behind
+     */
+    private void compactInPlace() {
+        HashMap<String, Long> lastTombstones = findLastTombstones();
         int currentBlockNumber = 1;
         int currentIndexInBlock = 0;  // Index in the current block
+        int liveRecords = 0;
+        RecordView record = new RecordView();
 
-        // Iterate through blocks and process tombstones
+        // Records only ever move towards the front, so they can be moved in place
         for (int blockNumber = 1; blockNumber <= occupiedBlocks; blockNumber++) {
-            Block currentBlock = disk.getBlock(blockNumber);
-            int numRecords = currentBlock.getRecordCount();
+            Block currentBlock = bufferPool.pin(blockNumber, true);
+            int numRecordsInBlock = currentBlock.getRecordCount();
 
             // Iterate through records in the current block
-            for (int j = 0; j < numRecords; j++) {
-                Record record = currentBlock.getRecordAt(j);
-                if (record.isTombstone()) {
-                    numRecords--;
+            for (int j = 0; j < numRecordsInBlock; j++) {
+                currentBlock.getRecordViewAt(j, record);
+                if (!isLive(record, blockNumber, j, lastTombstones)) {
                     continue;
                 }
                 // Move valid records to the current block and index in block
-                Block block = disk.getBlock(currentBlockNumber);
-                block.insertRecordAt(currentIndexInBlock, record);
+                Block block = bufferPool.pin(currentBlockNumber, true);
+                block.setRecordAt(currentIndexInBlock, record);
                 currentIndexInBlock++;
+                liveRecords++;
 
-                if (block.isFull()) {
+                if (currentIndexInBlock == block.getMaxRecordCount()) {
+                    block.setRecordCount(currentIndexInBlock);
+                    bufferPool.unpin(currentBlockNumber, true);
                     currentBlockNumber++;
                     currentIndexInBlock = 0;
+                } else {
+                    bufferPool.unpin(currentBlockNumber, true);
                 }
             }
+            bufferPool.unpin(blockNumber, false);
         }
+
+        // The last block may only be partially filled
+        int lastBlockNumber = currentBlockNumber - 1;
+        if (currentIndexInBlock > 0) {
+            Block block = bufferPool.pin(currentBlockNumber, true);
+            block.setRecordCount(currentIndexInBlock);
+            bufferPool.unpin(currentBlockNumber, true);
+            lastBlockNumber = currentBlockNumber;
+        }
+
+        // Free the blocks that are no longer used
+        for (int blockNumber = lastBlockNumber + 1; blockNumber <= occupiedBlocks; blockNumber++) {
+            bufferPool.pinNew(blockNumber);
+            bufferPool.unpin(blockNumber, true);
+        }
+        occupiedBlocks = lastBlockNumber;
+        numRecords = liveRecords;
+    }
+
+    /**
+     * Compacts a file-backed disk without ever leaving it in a state recovery cannot start from. The moves are not logged,
+     * and the buffer pool may write any block back at any time, so the blocks the last checkpoint holds are left alone
+     * until a checkpoint holds the compacted ones: the live records are packed into new blocks past the last one, which
+     * a crash simply cuts, then a checkpoint records them as the compacted copy of the first blocks, and only then are
+     * they copied over the front
+     */
+    private void compactIntoNewBlocks() {
+        HashMap<String, Long> lastTombstones = findLastTombstones();
+        int compactedFrom = occupiedBlocks + 1;
+        int compactedBlockNumber = occupiedBlocks;
+        Block compactedBlock = null;
+        int liveRecords = 0;
+        RecordView record = new RecordView();
+
+        for (int blockNumber = 1; blockNumber < compactedFrom; blockNumber++) {
+            Block currentBlock = bufferPool.pin(blockNumber, true);
+            int numRecordsInBlock = currentBlock.getRecordCount();
+            for (int j = 0; j < numRecordsInBlock; j++) {
+                currentBlock.getRecordViewAt(j, record);
+                if (!isLive(record, blockNumber, j, lastTombstones)) {
+                    continue;
+                }
+                if (compactedBlock == null || compactedBlock.isFull()) {
+                    if (compactedBlock != null) {
+                        bufferPool.unpin(compactedBlockNumber, true);
+                    }
+                    compactedBlockNumber++;
+                    compactedBlock = bufferPool.pinNew(compactedBlockNumber, true);
+                }
+                int recordCount = compactedBlock.getRecordCount();
+                compactedBlock.setRecordAt(recordCount, record);
+                compactedBlock.setRecordCount(recordCount + 1);
+                liveRecords++;
+            }
+            bufferPool.unpin(blockNumber, false);
+        }
+        int lastBlockRecordCount = 0;
+        if (compactedBlock != null) {
+            lastBlockRecordCount = compactedBlock.getRecordCount();
+            bufferPool.unpin(compactedBlockNumber, true);
+        }
+        int blockCount = compactedBlockNumber - occupiedBlocks;
+
+        // Every logged operation is in the blocks, as writers are held up
+        long lsn = recovery.getLastLsn();
+        bufferPool.flush();
+        recovery.flush();
+        disk.writeCheckpoint(lsn, blockCount, lastBlockRecordCount, compactedFrom);
+        copyCompactedBlocks(compactedFrom, blockCount, lastBlockRecordCount);
+        occupiedBlocks = blockCount;
+        numRecords = liveRecords;
+        checkpointLsn = lsn;
+        recovery.checkpoint(lsn);
+    }
+
+    /**
+     * Copies the blockCount compacted blocks from compactedFrom on over the first blocks and checkpoints them in place,
+     * then frees every block after them up to the end of the compacted ones. Copying again after a crash gives the same blocks,
+     * and the blocks left to free are past the checkpoint, so opening the disk cuts them
+     */
+    private void copyCompactedBlocks(int compactedFrom, int blockCount, int lastBlockRecordCount) {
+        for (int blockNumber = 1; blockNumber <= blockCount; blockNumber++) {
+            Block compactedBlock = bufferPool.pin(compactedFrom + blockNumber - 1, true);
+            bufferPool.pinNew(blockNumber, true).copyFrom(compactedBlock);
+            bufferPool.unpin(blockNumber, true);
+            bufferPool.unpin(compactedFrom + blockNumber - 1, false);
+        }
+        // The copies must be on disk before the compacted blocks they were taken from are freed
+        bufferPool.flush();
+        disk.writeCheckpoint(disk.getCheckpointLsn(), blockCount, lastBlockRecordCount);
+        for (int blockNumber = blockCount + 1; blockNumber < compactedFrom + blockCount; blockNumber++) {
+            bufferPool.pinNew(blockNumber, true);
+            bufferPool.unpin(blockNumber, true);
+        }
+        bufferPool.flush();
     }
 
     public void printState (Boolean verbose){
         System.out.println("#####\tPrinting state of Storage\t#####");
         if (verbose) {
             for (int blockNumber = 1; blockNumber <= occupiedBlocks; blockNumber++) {
-                System.out.println(disk.getBlock(blockNumber));
+                System.out.println(bufferPool.pin(blockNumber, true));
+                bufferPool.unpin(blockNumber, false);
             }
         }
         System.out.println(String.format("Number of records: %d", numRecords));
         System.out.println(String.format("Size of record in bytes: %d", Record.RECORD_BYTE_SIZE));
-        System.out.println(String.format("Max number of records in a block: %d", Block.MAX_RECORDS_PER_BLOCK));
+        System.out.println(String.format("Size of block in bytes: %d", config.getPageSize()));
+        System.out.println(String.format("Max number of records in a block: %d", Block.getMaxRecordsPerBlock(config.getPageSize())));
         System.out.println(String.format("Current number of occupied blocks: %d", occupiedBlocks));
         System.out.println(String.format("Disk utilization: %f %%", getDiskUtilization() * 100));
+        System.out.println(String.format("Buffer pool frames: %d", bufferPool.getFrameCount()));
         System.out.println();
         this.bPlusTree.bPlusTreeStats();
         System.out.println();
     }
 
-    private void printStatistics (String method,int blockAccessCounter, Double averageRating,long duration){
+    private void printStatistics (String method,int blockAccessCounter, Long indexNodeAccessCounter, Integer skippedBlockCounter, Double averageRating,long duration){
         System.out.println(method + " Method:");
         System.out.println(String.format("No. of Block Access: %d", blockAccessCounter));
+        if (indexNodeAccessCounter != null) {
+            System.out.println(String.format("No. of Index Node Access: %d", indexNodeAccessCounter));
+        }
+        if (skippedBlockCounter != null) {
+            System.out.println(String.format("No. of Blocks Skipped: %d", skippedBlockCounter));
+        }
+        System.out.println(String.format("Buffer Pool Hits/Misses/Write-backs: %d/%d/%d", bufferPool.getHitCount(), bufferPool.getMissCount(), bufferPool.getWriteBackCount()));
         if (averageRating != null) {
             System.out.println(String.format("Average Rating: %.3f", averageRating));
         }
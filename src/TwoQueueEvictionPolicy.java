@@ -0,0 +1,102 @@
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * 2Q (Johnson and Shasha). Blocks are first loaded into a FIFO queue, A1in.
+ * Only blocks that are loaded again shortly after being evicted from A1in, as remembered by the A1out ghost queue, are promoted to the LRU queue Am.
+ * Sequential loads are never remembered in A1out, and the frame of the last sequential load is evicted first,
+ * so a scan cycles through a single frame of A1in instead of displacing it.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+  private final int maxA1inSize;
+  private final int maxA1outSize;
+
+  private LinkedHashSet<Integer> a1in = new LinkedHashSet<>(); // frame ids, oldest first
+  private LinkedHashSet<Integer> am = new LinkedHashSet<>(); // frame ids, least recently used first
+  private ArrayDeque<Integer> a1out = new ArrayDeque<>(); // block numbers, oldest first
+  private HashSet<Integer> a1outBlocks = new HashSet<>();
+  private int[] frameBlockNumbers;
+  private boolean[] sequentialFrames;
+  private int lastSequentialFrame = -1;
+
+  public TwoQueueEvictionPolicy(int frameCount) {
+    // Sizes recommended by the paper
+    maxA1inSize = Math.max(1, frameCount / 4);
+    maxA1outSize = Math.max(1, frameCount / 2);
+    frameBlockNumbers = new int[frameCount];
+    sequentialFrames = new boolean[frameCount];
+  }
+
+  public void recordLoad(int frameId, int blockNumber, boolean sequential) {
+    frameBlockNumbers[frameId] = blockNumber;
+    sequentialFrames[frameId] = sequential;
+    lastSequentialFrame = sequential ? frameId : -1;
+    if (!sequential && a1outBlocks.remove(blockNumber)) {
+      a1out.remove(blockNumber);
+      am.add(frameId);
+    } else {
+      a1in.add(frameId);
+    }
+  }
+
+  public void recordAccess(int frameId, boolean sequential) {
+    if (sequential) {
+      return;
+    }
+    sequentialFrames[frameId] = false;
+    // Blocks in A1in are only promoted once they come back through A1out
+    if (am.remove(frameId)) {
+      am.add(frameId);
+    }
+  }
+
+  public int chooseVictim(IntPredicate isPinned) {
+    int frameId = lastSequentialFrame;
+    if (frameId != -1 && sequentialFrames[frameId] && !isPinned.test(frameId) && a1in.remove(frameId)) {
+      return frameId;
+    }
+
+    if (a1in.size() > maxA1inSize || am.isEmpty()) {
+      frameId = removeFirstUnpinned(a1in, isPinned);
+      if (frameId != -1) {
+        remember(frameId);
+        return frameId;
+      }
+    }
+    frameId = removeFirstUnpinned(am, isPinned);
+    if (frameId == -1) {
+      frameId = removeFirstUnpinned(a1in, isPinned);
+      if (frameId != -1) {
+        remember(frameId);
+      }
+    }
+    return frameId;
+  }
+
+  private void remember(int frameId) {
+    if (sequentialFrames[frameId]) {
+      return;
+    }
+    int blockNumber = frameBlockNumbers[frameId];
+    a1out.addLast(blockNumber);
+    a1outBlocks.add(blockNumber);
+    if (a1out.size() > maxA1outSize) {
+      a1outBlocks.remove(a1out.removeFirst());
+    }
+  }
+
+  private static int removeFirstUnpinned(LinkedHashSet<Integer> queue, IntPredicate isPinned) {
+    Iterator<Integer> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      int frameId = iterator.next();
+      if (!isPinned.test(frameId)) {
+        iterator.remove();
+        return frameId;
+      }
+    }
+    return -1;
+  }
+}
@@ -1,124 +1,760 @@
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * Purpose of write ahead logs: https://www.postgresql.org/docs/current/wal-intro.html
+ *
+ * Entries are appended to an in-memory buffer, which is written to the log and forced with FileChannel.force
+ * according to the DURABILITY mode. Every method can be called from several threads at once.
+ *
+ * Every entry carries a log sequence number(LSN), which increases by one with every entry and continues across
+ * restarts and checkpoints, so the storage can record up to which entry its blocks are durable and recovery replays only the rest.
+ *
+ * The log is a sequence of fixed-size segment files named after the log file and a segment number, which are
+ * preallocated when created. Every segment starts with a header holding its number and the LSN of its first entry,
+ * and every entry ends with a checksum over the segment number and the entry, so reading stops at the first entry that
+ * was never written, was torn by a crash or is left over from an earlier use of a recycled segment.
+ * A checkpoint renames the segments holding only entries before it to numbers past the last one instead of deleting them,
+ * so that the log keeps writing into files that are already allocated.
  */
 public class WriteAheadLog implements CrashRecovery {
-    private String logFileName;
-    private DataOutputStream logStream;
-    public static Integer LOG_BYTE_SIZE = Record.RECORD_BYTE_SIZE + CrashRecovery.OPERATION.BYTE_SIZE;
 
-    public WriteAheadLog(String logFileName) {
-        this.logFileName = logFileName;
-        openLogStream();
+  /**
+   * When a logged operation is on disk, relative to logOperation returning
+   */
+  public enum DURABILITY {
+    // Every entry is written and forced on its own before logOperation returns
+    FSYNC,
+    // logOperation returns once its entry is forced, but writers arriving while a force runs wait for the next one
+    // and share it, so one force covers a whole batch
+    GROUP_COMMIT,
+    // logOperation returns at once. A background thread writes and forces the batch every window,
+    // so a crash loses at most the operations of the last window
+    ASYNC
+  }
+
+  private static final int CHECKSUM_BYTE_SIZE = 4;
+  // An entry is the operation, its LSN, the record and the checksum
+  private static final int LSN_OFFSET = CrashRecovery.OPERATION.BYTE_SIZE;
+  private static final int RECORD_OFFSET = LSN_OFFSET + Long.BYTES;
+  public static Integer LOG_BYTE_SIZE = RECORD_OFFSET + Record.RECORD_BYTE_SIZE + CHECKSUM_BYTE_SIZE;
+  // Magic number, 4 Bytes of padding, the segment number and the LSN of its first entry
+  public static final int SEGMENT_HEADER_BYTE_SIZE = 24;
+  private static final int SEGMENT_NUMBER_OFFSET = 8;
+  private static final int SEGMENT_FIRST_LSN_OFFSET = 16;
+  private static final int SEGMENT_MAGIC = 0x57414C31; // "WAL1"
+  // Number of entries each of the two append buffers holds
+  private static final int BUFFER_ENTRY_COUNT = 2048;
+  // Segments kept for reuse after a checkpoint, older ones beyond this are deleted
+  private static final int MAX_RECYCLED_SEGMENTS = 4;
+
+  private String logFileName;
+
+  private final DURABILITY durability;
+  // A batch is forced as soon as it holds this many entries
+  private final int groupCommitSize;
+  // How long a batch may wait for more entries before it is forced
+  private final long groupCommitWindowNanos;
+  private final int segmentByteSize;
+  // Number of threads restore decodes segments on
+  private final int recoveryThreads;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled when entries became durable or a force failed
+  private final Condition forced = lock.newCondition();
+  // Signalled when a batch filled up
+  private final Condition batchFull = lock.newCondition();
+  // Entries appended but not written yet, double buffered so that writers keep appending while a batch is written
+  private ByteBuffer pending = ByteBuffer.allocateDirect(LOG_BYTE_SIZE * BUFFER_ENTRY_COUNT);
+  private ByteBuffer spare = ByteBuffer.allocateDirect(LOG_BYTE_SIZE * BUFFER_ENTRY_COUNT);
+  private int pendingLength = 0;
+  // LSNs of the last entry appended and of the last one forced
+  private long appendedSequence = 0;
+  private long durableSequence = 0;
+  // Whether a thread is writing and forcing a batch, so others wait for it instead
+  private boolean isForcing = false;
+  // Number of threads waiting for a group commit, a batch only waits for more entries while there are others
+  private int activeWriters = 0;
+  private IOException forceFailure;
+  private Thread asyncWriter;
+  private boolean isClosed = false;
+
+  // The segment being written and the offset of its next entry. Only the thread forcing a batch changes them
+  private FileChannel segmentChannel;
+  private long segmentNumber;
+  private int writeOffset;
+  // Only used by the thread forcing a batch, readers of the log use their own
+  private final CRC32C checksum = new CRC32C();
+
+  public WriteAheadLog(String logFileName) {
+    this(logFileName, new StorageConfiguration.Builder().build());
+  }
+
+  public WriteAheadLog(String logFileName, StorageConfiguration storageConfiguration) {
+    this.logFileName = logFileName;
+    this.durability = storageConfiguration.getWalDurability();
+    this.groupCommitSize = storageConfiguration.getGroupCommitSize();
+    this.groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(storageConfiguration.getGroupCommitWindowMicros());
+    this.segmentByteSize = storageConfiguration.getWalSegmentSize();
+    this.recoveryThreads = storageConfiguration.getRecoveryThreads();
+    openLogStream();
+    if (durability == DURABILITY.ASYNC) {
+      asyncWriter = new Thread(this::runAsyncWriter, "WriteAheadLog-writer");
+      asyncWriter.setDaemon(true);
+      asyncWriter.start();
     }
+  }
 
-    private void openLogStream() {
-      try {
-          logStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFileName, true)));
-      } catch (IOException e) {
-          e.printStackTrace();
-          // Handle exception (e.g., throw or log)
+  /**
+   * Continues after the last valid entry of the log, or starts a new one
+   */
+  private void openLogStream() {
+    try {
+      ByteBuffer segment = ByteBuffer.allocateDirect(segmentByteSize);
+      ArrayList<Long> numbers = listSegments();
+      long first = findFirstSegment(numbers, segment);
+      if (first < 0) {
+        // Reuse the oldest leftover segment if there is one
+        openSegment(numbers.isEmpty() ? 1 : numbers.get(0), 1);
+        return;
+      }
+      long last = first;
+      long lastFirstLsn = segment.getLong(SEGMENT_FIRST_LSN_OFFSET);
+      int end = validLength(segment, first);
+      // Probing the next segment overwrites segment even if it turns out to be a recycled one, so the last one in use
+      // is only known by its first LSN and end
+      while (isFull(end) && numbers.contains(last + 1) && readSegment(last + 1, segment)) {
+        last++;
+        lastFirstLsn = segment.getLong(SEGMENT_FIRST_LSN_OFFSET);
+        end = validLength(segment, last);
       }
+      appendedSequence = lastFirstLsn + (end - SEGMENT_HEADER_BYTE_SIZE) / LOG_BYTE_SIZE - 1;
+      durableSequence = appendedSequence;
+      // Segments past a damaged one are not part of the log, and their entries would checksum once it is written again
+      for (long number : numbers) {
+        if (number > last && readFirstLsn(number) >= 0) {
+          Files.delete(segmentPath(number));
+        }
+      }
+      segmentNumber = last;
+      segmentChannel = FileChannel.open(segmentPath(last), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      writeOffset = end;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not open the write ahead log " + logFileName, e);
     }
+  }
 
+  /**
+   * Appends the operation to the log and, unless the log is ASYNC, returns once it is forced to disk
+   *
+   * @throws IllegalStateException If the log could not be written or forced, in which case the operation is not durable
+   */
   public void logOperation(CrashRecovery.OPERATION operation, Record r) {
+    awaitDurable(appendOperation(operation, r));
+  }
+
+  /**
+   * Appends the operation to the log and returns its LSN without waiting for a group commit or an ASYNC force.
+   * An FSYNC log still forces the entry on its own before returning
+   */
+  public long appendOperation(CrashRecovery.OPERATION operation, Record r) {
+    lock.lock();
     try {
-      byte[] operationBytes = operation.toBytes();
-      byte[] affectedRecordBytes = r.marshal();
-      logStream.write(operationBytes);
-      logStream.write(affectedRecordBytes);
-      logStream.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
+      int offset = reserve();
+      pending.put(offset, operation.getValue());
+      r.marshal(pending, offset + RECORD_OFFSET);
+      return append(offset);
+    } finally {
+      lock.unlock();
     }
   }
-  
 
-  public void restore(StorageManager storageManager) {
+  /**
+   * The marker is padded to the size of every other log entry, with the block range in place of a record
+   */
+  public void logBulkLoad(int firstBlockNumber, int lastBlockNumber) {
+    long lsn;
+    lock.lock();
     try {
-      DataInputStream log = new DataInputStream(new FileInputStream(this.logFileName));
-      while (log.available() >= LOG_BYTE_SIZE) {
-        byte[] logEntryBytes = new byte[LOG_BYTE_SIZE];
-        log.read(logEntryBytes);
+      int offset = reserve();
+      pending.put(offset, CrashRecovery.OPERATION.BULK_LOAD.getValue());
+      pending.putInt(offset + RECORD_OFFSET, firstBlockNumber);
+      pending.putInt(offset + RECORD_OFFSET + Integer.BYTES, lastBlockNumber);
+      for (int i = offset + RECORD_OFFSET + 2 * Integer.BYTES; i < offset + LOG_BYTE_SIZE; i++) {
+        pending.put(i, (byte) 0);
+      }
+      lsn = append(offset);
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(lsn);
+  }
 
-        byte operationByte = logEntryBytes[0];
-        byte[] affectedRecordBytes = Arrays.copyOfRange(logEntryBytes, OPERATION.BYTE_SIZE, LOG_BYTE_SIZE);
+  /**
+   * Returns once the entry with the LSN is as durable as the mode promises: at once for FSYNC, which forced it
+   * when it was appended, and for ASYNC, or after the group commit that forces it
+   */
+  public void awaitDurable(long lsn) {
+    if (durability != DURABILITY.GROUP_COMMIT) {
+      return;
+    }
+    lock.lock();
+    try {
+      activeWriters++;
+      try {
+        awaitForced(lsn, true);
+      } finally {
+        activeWriters--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
 
-        CrashRecovery.OPERATION operation = CrashRecovery.OPERATION.fromByte(operationByte);
-        Record affectedRecord = Record.unmarshal(affectedRecordBytes);
+  /**
+   * Writes and forces every entry appended so far, whatever the durability mode
+   */
+  public void flush() {
+    lock.lock();
+    try {
+      awaitForced(appendedSequence, false);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-        applyOperation(storageManager, operation, affectedRecord);
+  public long getLastLsn() {
+    lock.lock();
+    try {
+      return appendedSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public DURABILITY getDurability() {
+    return durability;
+  }
+
+  /**
+   * Makes room for one entry at the end of the pending buffer and returns its offset. The lock must be held.
+   * A full buffer is forced first
+   */
+  private int reserve() {
+    if (isClosed) {
+      throw new IllegalStateException("Write ahead log is closed");
+    }
+    while (pendingLength + LOG_BYTE_SIZE > pending.capacity()) {
+      awaitForced(appendedSequence, false);
+    }
+    int offset = pendingLength;
+    pendingLength += LOG_BYTE_SIZE;
+    return offset;
+  }
+
+  /**
+   * Gives the entry just reserved at offset the next LSN and returns it. The lock must be held.
+   * An FSYNC log forces the entry right away
+   */
+  private long append(int offset) {
+    long lsn = ++appendedSequence;
+    pending.putLong(offset + LSN_OFFSET, lsn);
+    if (appendedSequence - durableSequence >= groupCommitSize) {
+      batchFull.signalAll();
+    }
+    if (durability == DURABILITY.FSYNC) {
+      awaitForced(lsn, false);
+    }
+    return lsn;
+  }
+
+  /**
+   * Waits until the entry numbered sequence is forced, forcing the pending batch itself if no other thread is.
+   * The lock must be held
+   *
+   * @param isBatching Whether to give other writers up to the group commit window to add to the batch first
+   */
+  private void awaitForced(long sequence, boolean isBatching) {
+    while (durableSequence < sequence) {
+      if (forceFailure != null) {
+        throw new IllegalStateException("Write ahead log could not be forced", forceFailure);
       }
+      if (isForcing) {
+        forced.awaitUninterruptibly();
+        continue;
+      }
+      isForcing = true;
+      try {
+        if (isBatching) {
+          awaitBatch();
+        }
+        forcePending();
+      } finally {
+        isForcing = false;
+        forced.signalAll();
+      }
+    }
+  }
+
+  /**
+   * Waits for the batch to fill up, for at most the group commit window and only while other writers may still add to it
+   */
+  private void awaitBatch() {
+    long remaining = groupCommitWindowNanos;
+    while (remaining > 0 && activeWriters > 1 && appendedSequence - durableSequence < groupCommitSize) {
+      try {
+        remaining = batchFull.awaitNanos(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes the pending entries and forces them to disk. The lock must be held by a thread that set isForcing.
+   * Unless every entry is forced on its own, the lock is released during the write so that other writers keep
+   * appending to the other buffer
+   */
+  private void forcePending() {
+    ByteBuffer batch = pending;
+    int batchLength = pendingLength;
+    long batchSequence = appendedSequence;
+    pending = spare;
+    pendingLength = 0;
+    boolean isShared = durability != DURABILITY.FSYNC;
+    if (isShared) {
+      lock.unlock();
+    }
+    IOException failure = null;
+    try {
+      writeEntries(batch, batchLength);
+      segmentChannel.force(false);
     } catch (IOException e) {
+      failure = e;
+    } finally {
+      if (isShared) {
+        lock.lock();
+      }
+    }
+    batch.clear();
+    spare = batch;
+    if (failure != null) {
+      forceFailure = failure;
+      throw new IllegalStateException("Write ahead log could not be forced", failure);
+    }
+    durableSequence = batchSequence;
+  }
+
+  /**
+   * Checksums the entries at the start of batch for the segment they land in and writes them,
+   * moving on to the next segment whenever the current one is full
+   */
+  private void writeEntries(ByteBuffer batch, int length) throws IOException {
+    int entryCount = length / LOG_BYTE_SIZE;
+    int entry = 0;
+    while (entry < entryCount) {
+      int fit = (segmentByteSize - writeOffset) / LOG_BYTE_SIZE;
+      if (fit == 0) {
+        segmentChannel.force(false);
+        segmentChannel.close();
+        openSegment(segmentNumber + 1, batch.getLong(entry * LOG_BYTE_SIZE + LSN_OFFSET));
+        continue;
+      }
+      int count = Math.min(fit, entryCount - entry);
+      for (int i = entry; i < entry + count; i++) {
+        int offset = i * LOG_BYTE_SIZE;
+        batch.putInt(offset + LOG_BYTE_SIZE - CHECKSUM_BYTE_SIZE, checksumOf(checksum, batch, offset, segmentNumber));
+      }
+      batch.limit((entry + count) * LOG_BYTE_SIZE).position(entry * LOG_BYTE_SIZE);
+      while (batch.hasRemaining()) {
+        writeOffset += segmentChannel.write(batch, writeOffset);
+      }
+      batch.clear();
+      entry += count;
+    }
+  }
+
+  /**
+   * Checksum of the segment number and the entry at offset, without its checksum
+   */
+  private static int checksumOf(CRC32C checksum, ByteBuffer entries, int offset, long segment) {
+    checksum.reset();
+    for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+      checksum.update((int) (segment >>> shift));
+    }
+    int position = entries.position();
+    int limit = entries.limit();
+    entries.limit(offset + LOG_BYTE_SIZE - CHECKSUM_BYTE_SIZE).position(offset);
+    checksum.update(entries);
+    entries.limit(limit).position(position);
+    return (int) checksum.getValue();
+  }
+
+  /**
+   * Makes the segment with the number the one being written, reusing its file if it was recycled and
+   * creating and zero-filling it otherwise, and writes its header
+   *
+   * @param firstLsn LSN of the first entry that will be written to the segment
+   */
+  private void openSegment(long number, long firstLsn) throws IOException {
+    Path path = segmentPath(number);
+    boolean isRecycled = Files.exists(path);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (!isRecycled || channel.size() < segmentByteSize) {
+      ByteBuffer zeros = ByteBuffer.allocateDirect(Math.min(segmentByteSize, 1 << 16));
+      for (long position = 0; position < segmentByteSize; ) {
+        zeros.clear().limit((int) Math.min(zeros.capacity(), segmentByteSize - position));
+        position += channel.write(zeros, position);
+      }
+    }
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTE_SIZE);
+    header.putInt(SEGMENT_MAGIC).putInt(0).putLong(number).putLong(firstLsn).flip();
+    while (header.hasRemaining()) {
+      channel.write(header, header.position());
+    }
+    segmentChannel = channel;
+    segmentNumber = number;
+    writeOffset = SEGMENT_HEADER_BYTE_SIZE;
+  }
+
+  /**
+   * Body of the background thread of ASYNC logs: forces whatever was appended once every window,
+   * or as soon as a batch fills up
+   */
+  private void runAsyncWriter() {
+    lock.lock();
+    try {
+      while (!isClosed) {
+        long remaining = Math.max(1, groupCommitWindowNanos);
+        while (!isClosed && remaining > 0 && appendedSequence - durableSequence < groupCommitSize) {
+          remaining = batchFull.awaitNanos(remaining);
+        }
+        if (appendedSequence > durableSequence) {
+          awaitForced(appendedSequence, false);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IllegalStateException e) {
+      // The failure is kept in forceFailure, flush and close report it
       e.printStackTrace();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replays every entry logged after the last checkpoint of the storage and before the call.
+   * Earlier entries are already in its blocks. Entries are redone straight into the blocks without being logged again,
+   * and the log stays open for the operations that follow.
+   * With more than one recovery thread, a pool of workers reads and decodes the next few segments in parallel
+   * while the calling thread redoes the entries of the segments before them in log order
+   *
+   * @throws IllegalStateException If the log could not be read up to its last entry. The storage is then left half redone
+   * and must be neither used nor checkpointed, so that the log keeps every entry for another attempt
+   */
+  public void restore(StorageManager storageManager) {
+    long checkpointLsn = storageManager.getCheckpointLsn();
+    long endLsn;
+    long lastSegment;
+    lock.lock();
+    try {
+      awaitForced(appendedSequence, false);
+      // Replaying logs again, so stop at the last entry there is now
+      endLsn = appendedSequence;
+      lastSegment = segmentNumber;
+    } finally {
+      lock.unlock();
     }
+    ExecutorService decoders = recoveryThreads > 1 ? Executors.newFixedThreadPool(recoveryThreads) : null;
+    // Decoded segments in log order
+    ArrayDeque<Future<RedoSegment>> segments = new ArrayDeque<>();
+    int maxSegmentsInFlight = decoders == null ? 1 : recoveryThreads * 2;
+    storageManager.beginRedo();
+    // Entries up to here are in the blocks or were redone
+    long replayedLsn = checkpointLsn;
     try {
-      logStream.close();
+      long next = findFirstSegment(listSegments(), ByteBuffer.allocate(SEGMENT_HEADER_BYTE_SIZE));
+      while (next >= 0) {
+        while (next <= lastSegment && segments.size() < maxSegmentsInFlight) {
+          long number = next++;
+          segments.add(decoders == null
+              ? CompletableFuture.completedFuture(decodeSegment(number, checkpointLsn, endLsn))
+              : decoders.submit(() -> decodeSegment(number, checkpointLsn, endLsn)));
+        }
+        if (segments.isEmpty()) {
+          break;
+        }
+        RedoSegment segment = segments.poll().get();
+        if (segment.firstLsn > replayedLsn + 1) {
+          break;
+        }
+        for (int i = 0; i < segment.count; i++) {
+          applyOperation(storageManager, segment.operations[i], segment.records[i]);
+        }
+        replayedLsn = Math.max(replayedLsn, segment.lastLsn);
+        if (!segment.isFull) {
+          break;
+        }
+      }
     } catch (IOException e) {
-      e.printStackTrace();
+      throw new IllegalStateException("Could not read the write ahead log " + logFileName, e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Could not read the write ahead log " + logFileName, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while replaying the write ahead log " + logFileName, e);
+    } finally {
+      if (decoders != null) {
+        decoders.shutdownNow();
+      }
     }
+    if (replayedLsn < endLsn) {
+      throw new IllegalStateException(String.format("Replay of the write ahead log %s stopped after LSN %d, before its end at LSN %d", logFileName, replayedLsn, endLsn));
+    }
+    storageManager.finishRedo();
   }
 
+  /**
+   * Reads the segment and decodes its entries after checkpointLsn up to endLsn. Bulk loads end with a checkpoint,
+   * so their markers are left out as there is nothing to redo
+   */
+  private RedoSegment decodeSegment(long number, long checkpointLsn, long endLsn) throws IOException {
+    ByteBuffer segment = ByteBuffer.allocate(segmentByteSize);
+    if (!readSegment(number, segment)) {
+      return new RedoSegment(Long.MAX_VALUE, 0, false);
+    }
+    int end = validLength(segment, number);
+    long lsn = segment.getLong(SEGMENT_FIRST_LSN_OFFSET);
+    RedoSegment decoded = new RedoSegment(lsn, (end - SEGMENT_HEADER_BYTE_SIZE) / LOG_BYTE_SIZE, isFull(end));
+    for (int offset = SEGMENT_HEADER_BYTE_SIZE; offset < end && lsn <= endLsn; offset += LOG_BYTE_SIZE, lsn++) {
+      CrashRecovery.OPERATION operation = CrashRecovery.OPERATION.fromByte(segment.get(offset));
+      if (lsn <= checkpointLsn || operation == CrashRecovery.OPERATION.BULK_LOAD) {
+        continue;
+      }
+      decoded.operations[decoded.count] = operation;
+      decoded.records[decoded.count] = Record.unmarshal(segment, offset + RECORD_OFFSET);
+      decoded.count++;
+    }
+    decoded.lastLsn = lsn - 1;
+    return decoded;
+  }
+
+  /**
+   * The entries of a segment to redo, the LSNs it holds and whether the log may go on in the next segment
+   */
+  private static class RedoSegment {
+    final long firstLsn;
+    long lastLsn;
+    final CrashRecovery.OPERATION[] operations;
+    final Record[] records;
+    int count = 0;
+    final boolean isFull;
+
+    RedoSegment(long firstLsn, int capacity, boolean isFull) {
+      this.firstLsn = firstLsn;
+      this.lastLsn = firstLsn - 1;
+      this.operations = new CrashRecovery.OPERATION[capacity];
+      this.records = new Record[capacity];
+      this.isFull = isFull;
+    }
+  }
+
+  /**
+   * Redoes the operation without logging it again
+   */
   private void applyOperation(StorageManager storageManager, CrashRecovery.OPERATION operation, Record record) {
     switch (operation) {
       case INSERT:
-        storageManager.insertRecord(record);
+        storageManager.redoInsert(record);
         break;
       case DELETE:
-        storageManager.deleteRecord(record);
+        storageManager.redoDelete(record);
         break;
       default:
         System.out.println("Unsupported operation: " + operation);
     }
   }
 
-
-  public void checkpoint() {
-    // Close the current log stream temporarily
-    closeLogStream();
-
+  /**
+   * Drops the entries up to lsn, which the caller must have made redundant by checkpointing the storage first.
+   * Every segment holding only such entries is renamed past the last segment to be written again. The current one is kept
+   */
+  public void checkpoint(long lsn) {
+    lock.lock();
     try {
-      String checkpointLogFileName = logFileName + ".checkpoint";
-      DataOutputStream checkpointLogStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpointLogFileName)));
-
-      DataInputStream originalLogStream = new DataInputStream(new FileInputStream(logFileName));
-      byte[] buffer = new byte[LOG_BYTE_SIZE];
-      while (originalLogStream.available() >= LOG_BYTE_SIZE) {
-        originalLogStream.read(buffer);
-        checkpointLogStream.write(buffer);
+      while (isForcing) {
+        forced.awaitUninterruptibly();
+      }
+      // The lock is held from here on, so the log does not move on to another segment while segments are renamed
+      ArrayList<Long> numbers = listSegments();
+      long highest = numbers.get(numbers.size() - 1);
+      int recycled = 0;
+      for (long number : numbers) {
+        if (number > segmentNumber) {
+          recycled++;
+        }
+      }
+      for (long number : numbers) {
+        // The last entry of a segment is the one before the first entry of the next
+        long nextFirstLsn = number < segmentNumber ? readFirstLsn(number + 1) : -1;
+        if (nextFirstLsn < 0 || nextFirstLsn - 1 > lsn) {
+          break;
+        }
+        if (recycled < MAX_RECYCLED_SEGMENTS) {
+          // A renamed segment no longer matches the number in its header, so it reads as empty until it is reused
+          highest++;
+          Files.move(segmentPath(number), segmentPath(highest));
+          recycled++;
+        } else {
+          Files.delete(segmentPath(number));
+        }
       }
-
-      originalLogStream.close();
-      checkpointLogStream.close();
-
-      openLogStream();
     } catch (IOException e) {
-      e.printStackTrace();
-      // Handle the exception (e.g., throw or log)
+      forceFailure = e;
+      throw new IllegalStateException("Write ahead log could not be checkpointed", e);
+    } finally {
+      lock.unlock();
     }
   }
 
-
-  public void closeLogStream() {
+  /**
+   * Forces whatever is still pending, stops the background writer of an ASYNC log and closes the current segment
+   */
+  public void close() {
+    lock.lock();
     try {
-      if (logStream != null) {
-        logStream.close();
+      if (isClosed) {
+        return;
       }
+      if (forceFailure == null) {
+        awaitForced(appendedSequence, false);
+      }
+      isClosed = true;
+      batchFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (asyncWriter != null) {
+        asyncWriter.join();
+      }
+      segmentChannel.close();
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Numbers of the segment files of this log in ascending order, whether in use or recycled
+   */
+  private ArrayList<Long> listSegments() throws IOException {
+    Path logPath = Paths.get(logFileName).toAbsolutePath();
+    String prefix = logPath.getFileName().toString() + ".";
+    ArrayList<Long> numbers = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(logPath.getParent(), prefix + "*")) {
+      for (Path file : files) {
+        String suffix = file.getFileName().toString().substring(prefix.length());
+        if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+          numbers.add(Long.parseLong(suffix));
+        }
+      }
     }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * Number of the oldest segment in use, read into segment, or -1 if every segment is a recycled one
+   */
+  private long findFirstSegment(ArrayList<Long> numbers, ByteBuffer segment) throws IOException {
+    for (long number : numbers) {
+      if (readSegment(number, segment)) {
+        return number;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads the whole segment into segment. Returns whether its header holds its own number, i.e. whether it is in use
+   */
+  private boolean readSegment(long number, ByteBuffer segment) throws IOException {
+    segment.clear();
+    try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+      int read = 0;
+      while (segment.hasRemaining() && read >= 0) {
+        read = channel.read(segment, segment.position());
+      }
+    }
+    int length = segment.position();
+    segment.clear();
+    return length >= SEGMENT_HEADER_BYTE_SIZE && segment.getInt(0) == SEGMENT_MAGIC && segment.getLong(SEGMENT_NUMBER_OFFSET) == number;
+  }
+
+  /**
+   * LSN of the first entry of the segment, or -1 if there is no such segment in use
+   */
+  private long readFirstLsn(long number) throws IOException {
+    if (!Files.exists(segmentPath(number))) {
+      return -1;
+    }
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTE_SIZE);
+    try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+      int read = 0;
+      while (header.hasRemaining() && read >= 0) {
+        read = channel.read(header, header.position());
+      }
+    }
+    boolean isInUse = !header.hasRemaining() && header.getInt(0) == SEGMENT_MAGIC && header.getLong(SEGMENT_NUMBER_OFFSET) == number;
+    return isInUse ? header.getLong(SEGMENT_FIRST_LSN_OFFSET) : -1;
+  }
+
+  /**
+   * Offset just past the last entry of the segment whose checksum matches and whose LSN follows the one before
+   */
+  private int validLength(ByteBuffer segment, long number) {
+    CRC32C readChecksum = new CRC32C();
+    long lsn = segment.getLong(SEGMENT_FIRST_LSN_OFFSET);
+    int offset = SEGMENT_HEADER_BYTE_SIZE;
+    while (offset + LOG_BYTE_SIZE <= segmentByteSize
+        && segment.getInt(offset + LOG_BYTE_SIZE - CHECKSUM_BYTE_SIZE) == checksumOf(readChecksum, segment, offset, number)
+        && segment.getLong(offset + LSN_OFFSET) == lsn) {
+      offset += LOG_BYTE_SIZE;
+      lsn++;
+    }
+    return offset;
+  }
+
+  /**
+   * Whether no further entry fits in a segment whose valid entries end at offset, so the log may go on in the next one
+   */
+  private boolean isFull(int offset) {
+    return offset + LOG_BYTE_SIZE > segmentByteSize;
   }
 
-  // Finalize method (called by the garbage collector before an object is reclaimed)
-  @Override
-  protected void finalize() throws Throwable {
-    closeLogStream();
+  private Path segmentPath(long number) {
+    return Paths.get(String.format("%s.%08d", logFileName, number));
   }
 }
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the min/max numVotes and the number of records(not tombstones) written to every block.
+ * Deleting a record appends its tombstone to another block, so the counts and ranges still include deleted records until compaction.
+ * Scans use it to skip blocks that cannot contain a matching record without reading them.
+ */
+public class ZoneMap {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Indexed by block number
+  private int[] minNumVotes;
+  private int[] maxNumVotes;
+  private int[] recordCounts;
+
+  public ZoneMap() {
+    clear();
+  }
+
+  public void clear() {
+    minNumVotes = new int[INITIAL_CAPACITY];
+    maxNumVotes = new int[INITIAL_CAPACITY];
+    recordCounts = new int[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Widens the block's range to include a record written to it. Tombstones do not match any scan so they are left out
+   */
+  public void addRecord(int blockNumber, int numVotes, boolean isTombstone) {
+    if (isTombstone) {
+      return;
+    }
+    ensureCapacity(blockNumber);
+    if (recordCounts[blockNumber] == 0) {
+      minNumVotes[blockNumber] = numVotes;
+      maxNumVotes[blockNumber] = numVotes;
+    } else {
+      minNumVotes[blockNumber] = Math.min(minNumVotes[blockNumber], numVotes);
+      maxNumVotes[blockNumber] = Math.max(maxNumVotes[blockNumber], numVotes);
+    }
+    recordCounts[blockNumber]++;
+  }
+
+  /**
+   * Whether the block may hold a record with numVotes between min and max inclusive
+   */
+  public boolean mayContainNumVotes(int blockNumber, int min, int max) {
+    return getRecordCount(blockNumber) > 0 && minNumVotes[blockNumber] <= max && maxNumVotes[blockNumber] >= min;
+  }
+
+  public int getRecordCount(int blockNumber) {
+    return blockNumber < recordCounts.length ? recordCounts[blockNumber] : 0;
+  }
+
+  private void ensureCapacity(int blockNumber) {
+    if (blockNumber < recordCounts.length) {
+      return;
+    }
+    int capacity = Math.max(blockNumber + 1, recordCounts.length * 2);
+    minNumVotes = Arrays.copyOf(minNumVotes, capacity);
+    maxNumVotes = Arrays.copyOf(maxNumVotes, capacity);
+    recordCounts = Arrays.copyOf(recordCounts, capacity);
+  }
+}